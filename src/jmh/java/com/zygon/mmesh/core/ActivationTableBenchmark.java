@@ -0,0 +1,95 @@
+
+package com.zygon.mmesh.core;
+
+import com.zygon.mmesh.Identifier;
+import com.zygon.mmesh.message.ActivationMessage;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Every activation a cell hears goes through the activation table, and every
+ * one of them reads the full active set back out again.
+ *
+ * @author zygon
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dmmesh.verbose=false")
+public class ActivationTableBenchmark {
+
+    public static enum TableType {
+        CACHE {
+            @Override
+            public ActivationTable create() {
+                return new CacheActivationTable(1, TimeUnit.SECONDS);
+            }
+        },
+        ARRAY {
+            @Override
+            public ActivationTable create() {
+                return new ArrayActivationTable(1, TimeUnit.SECONDS);
+            }
+        };
+        
+        public abstract ActivationTable create();
+    }
+    
+    @Param({"4", "32", "256"})
+    private int activeCount;
+    
+    @Param({"CACHE", "ARRAY"})
+    private TableType tableType;
+    
+    private ActivationTable table;
+    private ActivationMessage[] messages;
+    private int next = 0;
+    
+    @Setup
+    public void setup() {
+        this.table = this.tableType.create();
+        this.messages = new ActivationMessage[this.activeCount];
+        
+        for (int i = 0; i < this.messages.length; i++) {
+            this.messages[i] = new ActivationMessage(Identifier.of(i), 1.0);
+            this.table.add(this.messages[i]);
+        }
+    }
+    
+    @Benchmark
+    public ActivationTable add() {
+        this.table.add(this.messages[this.next++ % this.messages.length]);
+        return this.table;
+    }
+    
+    @Benchmark
+    public Set<Identifier> getAllIdentifiers() {
+        return this.table.getAllIdentifiers();
+    }
+    
+    @Benchmark
+    public Set<Identifier> addAndGetAll() {
+        this.table.add(this.messages[this.next++ % this.messages.length]);
+        return this.table.getAllIdentifiers();
+    }
+    
+    // What the cells do on every activation
+    @Benchmark
+    public IdentifierSet addAndGetActiveSet() {
+        this.table.add(this.messages[this.next++ % this.messages.length]);
+        return this.table.getActiveSet();
+    }
+}
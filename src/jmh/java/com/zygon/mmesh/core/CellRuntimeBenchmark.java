@@ -0,0 +1,116 @@
+
+package com.zygon.mmesh.core;
+
+import com.zygon.mmesh.Identifier;
+import com.zygon.mmesh.sdr.SDR;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One SDR activation through a started group, until the group is idle 
+ * again, for each cell runtime.
+ * 
+ * POLLING is the original thread-per-cell scheduler, expect it to take 
+ * seconds per op and to fail outright at 100k cells (thread limits). 
+ * VIRTUAL_THREAD needs a Java 21+ runtime and fails in setup otherwise.
+ *
+ * @author zygon
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dmmesh.verbose=false", "-Xmx4g"})
+public class CellRuntimeBenchmark {
+
+    public static enum RuntimeType {
+        POLLING {
+            @Override
+            public CellRuntime create() {
+                return new PollingCellRuntime();
+            }
+        },
+        VIRTUAL_THREAD {
+            @Override
+            public CellRuntime create() {
+                return new VirtualThreadCellRuntime();
+            }
+        },
+        EVENT_DRIVEN {
+            @Override
+            public CellRuntime create() {
+                return new EventDrivenCellRuntime();
+            }
+        },
+        ACTOR {
+            @Override
+            public CellRuntime create() {
+                return new ActorCellRuntime();
+            }
+        },
+        SHARDED {
+            @Override
+            public CellRuntime create() {
+                return new ShardedCellRuntime();
+            }
+        },
+        ;
+        
+        public abstract CellRuntime create();
+    }
+    
+    @Param({"POLLING", "VIRTUAL_THREAD", "EVENT_DRIVEN", "ACTOR", "SHARDED"})
+    private RuntimeType runtime;
+    
+    @Param({"1000", "10000", "100000"})
+    private int cellCount;
+    
+    @Param({"4"})
+    private int activeCount;
+    
+    private CellGroup cellGroup;
+    private SDR sdr;
+    private int step = 0;
+    
+    @Setup
+    public void setup() {
+        this.cellGroup = new CellGroup(Identifier.of(0), this.cellCount, this.runtime.create());
+        this.cellGroup.doStart();
+        this.sdr = new SDR(this.cellGroup);
+    }
+    
+    @TearDown
+    public void tearDown() {
+        this.cellGroup.doStop();
+    }
+    
+    @Benchmark
+    public CellGroup activate() {
+        Identifier[] ids = new Identifier[this.activeCount];
+        
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = Identifier.of((this.step + i) % this.cellCount);
+        }
+        this.step = (this.step + 1) % this.cellCount;
+        
+        this.sdr.activate(ids, ids);
+        
+        while (!this.cellGroup.isIdle()) {
+            Thread.yield();
+        }
+        
+        return this.cellGroup;
+    }
+}
@@ -0,0 +1,103 @@
+
+package com.zygon.mmesh.core;
+
+import com.google.common.collect.Sets;
+import com.zygon.mmesh.Identifier;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * IdentifierSets are built for every prediction message and every activation
+ * seen by a cell, so construction and the first hash are on the hot path.
+ *
+ * @author zygon
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dmmesh.verbose=false")
+public class IdentifierSetBenchmark {
+
+    @Param({"4", "16", "64"})
+    private int setSize;
+    
+    private Set<Identifier> source;
+    private IdentifierSet built;
+    private IdentifierSet other;
+    private IdentifierSet otherWithBitmap;
+    
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        
+        this.source = Sets.newHashSet();
+        while (this.source.size() < this.setSize) {
+            this.source.add(Identifier.of(random.nextInt(this.setSize * 64)));
+        }
+        
+        this.built = new IdentifierSet(this.source);
+        
+        Set<Identifier> others = Sets.newHashSet();
+        while (others.size() < this.setSize) {
+            others.add(Identifier.of(random.nextInt(this.setSize * 64)));
+        }
+        
+        this.other = new IdentifierSet(others);
+        this.otherWithBitmap = new IdentifierSet(others);
+        this.otherWithBitmap.getWords();
+    }
+    
+    @Benchmark
+    public IdentifierSet construct() {
+        return new IdentifierSet(this.source);
+    }
+    
+    @Benchmark
+    public int constructAndHash() {
+        return new IdentifierSet(this.source).hashCode();
+    }
+    
+    @Benchmark
+    public Identifier[] getIdentifiers() {
+        return this.built.getIdentifiers();
+    }
+    
+    @Benchmark
+    public int overlap() {
+        return this.built.overlap(this.other);
+    }
+    
+    @Benchmark
+    public int overlapBitmap() {
+        return this.built.overlap(this.otherWithBitmap);
+    }
+    
+    @Benchmark
+    public IdentifierSet union() {
+        return this.built.union(this.other);
+    }
+    
+    @Benchmark
+    public IdentifierSet intersection() {
+        return this.built.intersection(this.other);
+    }
+    
+    @Benchmark
+    public Identifier identifierOf() {
+        return Identifier.of(this.setSize);
+    }
+}
@@ -0,0 +1,139 @@
+
+package com.zygon.mmesh.core;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.zygon.mmesh.Identifier;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups of IdentifierSets in the TreeMap the PredictionTable uses, with
+ * structural equality against the old hash-only ordering.  Lookups are done
+ * with equal but distinct instances so every hit pays for the full compare.
+ * 
+ * The table is seeded with sets whose 32bit hashCodes collide, found by 
+ * brute force in setup, which the hash-only ordering would have merged.
+ *
+ * @author zygon
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dmmesh.verbose=false")
+public class IdentifierSetCollisionBenchmark {
+
+    // The pre-structural ordering
+    private static final Comparator<IdentifierSet> HASH_ONLY = new Comparator<IdentifierSet>() {
+        @Override
+        public int compare(IdentifierSet o1, IdentifierSet o2) {
+            return o1.hashCode() > o2.hashCode() ? 1 : (o1.hashCode() < o2.hashCode() ? -1 : 0);
+        }
+    };
+    
+    private static IdentifierSet copy(IdentifierSet idSet) {
+        Set<Identifier> ids = new HashSet<Identifier>();
+        
+        for (Identifier id : idSet.getIdentifiers()) {
+            ids.add(id);
+        }
+        
+        return new IdentifierSet(ids);
+    }
+    
+    @Param({"1000", "100000"})
+    private int tableSize;
+    
+    @Param({"16"})
+    private int setSize;
+    
+    private final TreeMap<IdentifierSet,Double> structural = Maps.newTreeMap();
+    private final TreeMap<IdentifierSet,Double> hashOnly = new TreeMap<IdentifierSet,Double>(HASH_ONLY);
+    private IdentifierSet[] probes;
+    private IdentifierSet[] collidingProbes;
+    private int next = 0;
+    
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        int population = this.setSize * 64;
+        
+        Map<Integer,IdentifierSet> byHashCode = Maps.newHashMap();
+        List<IdentifierSet> colliding = Lists.newArrayList();
+        
+        // Birthday search for 32bit collisions, ~2^16 sets per collision
+        while (colliding.size() < 16 || byHashCode.size() < this.tableSize) {
+            IdentifierSet idSet = PredictionTableBenchmark.randomSet(random, population, this.setSize);
+            IdentifierSet existing = byHashCode.get(idSet.hashCode());
+            
+            if (existing == null) {
+                byHashCode.put(idSet.hashCode(), idSet);
+            } else if (!existing.equals(idSet) && colliding.size() < 16) {
+                colliding.add(existing);
+                colliding.add(idSet);
+            }
+        }
+        
+        for (IdentifierSet idSet : byHashCode.values()) {
+            if (this.structural.size() == this.tableSize) {
+                break;
+            }
+            this.structural.put(idSet, 1.0);
+            this.hashOnly.put(idSet, 1.0);
+        }
+        
+        for (IdentifierSet idSet : colliding) {
+            this.structural.put(idSet, 1.0);
+            this.hashOnly.put(idSet, 1.0);
+        }
+        
+        // The whole point: colliding sets are kept apart
+        Preconditions.checkState(this.structural.size() == this.hashOnly.size() + colliding.size() / 2);
+        
+        List<IdentifierSet> keys = Lists.newArrayList(this.hashOnly.keySet());
+        this.probes = new IdentifierSet[1024];
+        for (int i = 0; i < this.probes.length; i++) {
+            this.probes[i] = copy(keys.get(random.nextInt(keys.size())));
+        }
+        
+        this.collidingProbes = new IdentifierSet[colliding.size()];
+        for (int i = 0; i < this.collidingProbes.length; i++) {
+            this.collidingProbes[i] = copy(colliding.get(i));
+        }
+    }
+    
+    @Benchmark
+    public Double lookupStructural() {
+        return this.structural.get(this.probes[this.next++ % this.probes.length]);
+    }
+    
+    @Benchmark
+    public Double lookupHashOnly() {
+        return this.hashOnly.get(this.probes[this.next++ % this.probes.length]);
+    }
+    
+    @Benchmark
+    public Double lookupColliding() {
+        return this.structural.get(this.collidingProbes[this.next++ % this.collidingProbes.length]);
+    }
+}
@@ -0,0 +1,83 @@
+
+package com.zygon.mmesh.core;
+
+import com.google.common.collect.ImmutableMap;
+import com.zygon.mmesh.Identifier;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What logging costs an add: not logged, logged and forced in the 
+ * background, and waiting for the force.
+ *
+ * @author zygon
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dmmesh.verbose=false")
+public class PredictionLogBenchmark {
+    
+    @Param({"NONE", "ASYNC", "SYNC"})
+    private String durability;
+    
+    private final Random random = new Random(42);
+    private final IdentifierSet[] sets = new IdentifierSet[1024];
+    private File dir;
+    private PredictionLog log;
+    private PredictionTable table;
+    private int next = 0;
+    
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        for (int i = 0; i < this.sets.length; i++) {
+            this.sets[i] = PredictionTableBenchmark.randomSet(this.random, 256, 8);
+        }
+        
+        this.table = new PredictionTable();
+        this.table.setCapacity(1000, PredictionTable.EvictionPolicy.LOWEST_VALUE);
+        
+        if (!this.durability.equals("NONE")) {
+            this.dir = Files.createTempDirectory("mmesh-log").toFile();
+            this.log = new PredictionLog(this.dir, PredictionLog.Durability.valueOf(this.durability));
+            this.log.open(ImmutableMap.of(Identifier.of(0), this.table));
+        }
+    }
+    
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        if (this.log != null) {
+            this.log.close();
+            
+            for (File file : this.dir.listFiles()) {
+                file.delete();
+            }
+            this.dir.delete();
+        }
+    }
+    
+    @Benchmark
+    public long add() {
+        this.table.add(this.sets[this.next++ & (this.sets.length - 1)], 1.0);
+        
+        return this.table.getCount();
+    }
+}
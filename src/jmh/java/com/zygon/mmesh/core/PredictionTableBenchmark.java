@@ -0,0 +1,128 @@
+
+package com.zygon.mmesh.core;
+
+import com.google.common.collect.Sets;
+import com.zygon.mmesh.Identifier;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Covers the prediction learning path: exact re-enforcement, the substring
+ * search done for unseen sets and the raw longest substring computation.
+ *
+ * @author zygon
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dmmesh.verbose=false")
+public class PredictionTableBenchmark {
+
+    /*pkg*/ static IdentifierSet randomSet(Random random, int population, int size) {
+        Set<Identifier> ids = Sets.newHashSet();
+        
+        while (ids.size() < size) {
+            ids.add(Identifier.of(random.nextInt(population)));
+        }
+        
+        return new IdentifierSet(ids);
+    }
+    
+    @Param({"100", "1000"})
+    private int tableSize;
+    
+    @Param({"8", "16", "32"})
+    private int setSize;
+    
+    private final Random random = new Random(42);
+    private PredictionTable table;
+    private PredictionTable boundedTable;
+    private IdentifierSet[] learned;
+    private IdentifierSet[] unseen;
+    private int next = 0;
+    
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        int population = this.setSize * 64;
+        
+        this.learned = new IdentifierSet[this.tableSize];
+        for (int i = 0; i < this.learned.length; i++) {
+            this.learned[i] = randomSet(this.random, population, this.setSize);
+        }
+        
+        this.unseen = new IdentifierSet[1024];
+        for (int i = 0; i < this.unseen.length; i++) {
+            this.unseen[i] = randomSet(this.random, population, this.setSize);
+        }
+    }
+    
+    // Unseen sets get learned, so start every iteration from the same table
+    @Setup(Level.Iteration)
+    public void setupIteration() {
+        this.table = new PredictionTable();
+        
+        this.boundedTable = new PredictionTable();
+        this.boundedTable.setCapacity(this.tableSize, PredictionTable.EvictionPolicy.LOWEST_VALUE);
+        this.boundedTable.setDecay(0.99, 100);
+        
+        for (IdentifierSet idSet : this.learned) {
+            this.table.add(idSet, 1.0);
+            this.boundedTable.add(idSet, 1.0);
+        }
+    }
+    
+    @Benchmark
+    public PredictionTable addExact() {
+        this.table.add(this.learned[this.next++ % this.learned.length], 1.0);
+        return this.table;
+    }
+    
+    @Benchmark
+    public PredictionTable addSubstring() {
+        this.table.add(this.unseen[this.next++ % this.unseen.length], 1.0);
+        return this.table;
+    }
+    
+    // Streaming unseen sets into a full table, every add evicts
+    @Benchmark
+    public PredictionTable addSubstringBounded() {
+        this.boundedTable.add(this.unseen[this.next++ % this.unseen.length], 1.0);
+        return this.boundedTable;
+    }
+    
+    @Benchmark
+    public int longestSubstr() {
+        int i = this.next++;
+        return PredictionTable.longestSubstr(
+                this.learned[i % this.learned.length].getIdentifiers(), 
+                this.unseen[i % this.unseen.length].getIdentifiers());
+    }
+    
+    @Benchmark
+    public int longestSubstrKeys() {
+        int i = this.next++;
+        return PredictionTable.longestSubstr(
+                this.learned[i % this.learned.length].getKeys(), 
+                this.unseen[i % this.unseen.length].getKeys());
+    }
+    
+    @Benchmark
+    public double getPrediction() {
+        return this.table.getPrediction(this.learned[this.next++ % this.learned.length]);
+    }
+}
@@ -0,0 +1,77 @@
+
+package com.zygon.mmesh.core;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A cell's worker learning while other threads read the same table, the way
+ * the Watcher and activation handling do.  Learning throughput should not
+ * depend on the readers.
+ *
+ * @author zygon
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dmmesh.verbose=false")
+public class PredictionTableConcurrencyBenchmark {
+
+    private PredictionTable table;
+    private IdentifierSet[] sets;
+    
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next = 0;
+    }
+    
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        
+        this.table = new PredictionTable();
+        this.table.setCapacity(1000, PredictionTable.EvictionPolicy.LEAST_RECENTLY_REINFORCED);
+        
+        this.sets = new IdentifierSet[4096];
+        for (int i = 0; i < this.sets.length; i++) {
+            this.sets[i] = PredictionTableBenchmark.randomSet(random, 1024, 8);
+        }
+    }
+    
+    @Benchmark
+    @Group("learnWhileReading")
+    @GroupThreads(1)
+    public PredictionTable learn(Cursor cursor) {
+        this.table.add(this.sets[cursor.next++ % this.sets.length], 1.0);
+        return this.table;
+    }
+    
+    @Benchmark
+    @Group("learnWhileReading")
+    @GroupThreads(3)
+    public double read(Cursor cursor) {
+        return this.table.getPrediction(this.sets[cursor.next++ % this.sets.length]);
+    }
+    
+    @Benchmark
+    @Group("learnAlone")
+    @GroupThreads(1)
+    public PredictionTable learnAlone(Cursor cursor) {
+        this.table.add(this.sets[cursor.next++ % this.sets.length], 1.0);
+        return this.table;
+    }
+}
@@ -0,0 +1,84 @@
+
+package com.zygon.mmesh.core;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Overlap matching, which a cell in OVERLAP mode does for every activation
+ * it hears.  The probes are noisy copies of learned sets.  Sized like a 2k 
+ * cell group at 2% sparsity.
+ *
+ * @author zygon
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dmmesh.verbose=false")
+public class PredictionTableOverlapBenchmark {
+
+    @Param({"1000", "100000"})
+    private int tableSize;
+    
+    @Param({"2048"})
+    private int population;
+    
+    @Param({"40"})
+    private int setSize;
+    
+    private PredictionTable table;
+    private IdentifierSet[] probes;
+    private int next = 0;
+    
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        
+        this.table = new PredictionTable(RewardFunctions.FIBONACCI, PredictionTable.MatchMode.OVERLAP, 0.5);
+        IdentifierSet[] learned = new IdentifierSet[this.tableSize];
+        
+        // bulk load, learning 100k sets one by one would take the whole run
+        for (int i = 0; i < learned.length; i++) {
+            learned[i] = PredictionTableBenchmark.randomSet(random, this.population, this.setSize);
+            this.table.put(learned[i], 1.0);
+        }
+        
+        // a quarter of each probe is noise
+        this.probes = new IdentifierSet[1024];
+        for (int i = 0; i < this.probes.length; i++) {
+            IdentifierSet base = learned[random.nextInt(learned.length)];
+            IdentifierSet noise = PredictionTableBenchmark.randomSet(random, this.population, this.setSize / 4);
+            
+            IdentifierSet probe = base;
+            for (int j = 0; j < this.setSize / 4; j++) {
+                probe = probe.without(probe.getIdentifiers()[random.nextInt(probe.size())]);
+            }
+            
+            this.probes[i] = probe.union(noise);
+        }
+    }
+    
+    @Benchmark
+    public double getPrediction() {
+        return this.table.getPrediction(this.probes[this.next++ % this.probes.length]);
+    }
+    
+    @Benchmark
+    public List<PredictionTable.Match> getPredictionsTop5() {
+        return this.table.getPredictions(this.probes[this.next++ % this.probes.length], 5);
+    }
+}
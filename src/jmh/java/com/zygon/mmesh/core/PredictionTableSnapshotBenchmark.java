@@ -0,0 +1,99 @@
+
+package com.zygon.mmesh.core;
+
+import com.google.common.collect.Maps;
+import com.zygon.mmesh.Identifier;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Restoring a snapshot of many small tables: the lazy restore alone, and
+ * with every table decoded as well (what an eager load would cost).
+ *
+ * @author zygon
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dmmesh.verbose=false", "-Xmx2g"})
+public class PredictionTableSnapshotBenchmark {
+    
+    @Param({"10000", "100000"})
+    private int tableCount;
+    
+    @Param({"8"})
+    private int setsPerTable;
+    
+    private File file;
+    private Map<Identifier, PredictionTable> tables;
+    
+    @Setup(Level.Trial)
+    public void setupTrial() throws IOException {
+        Random random = new Random(42);
+        Map<Identifier, PredictionTable> learned = Maps.newLinkedHashMap();
+        
+        for (int i = 0; i < this.tableCount; i++) {
+            PredictionTable table = new PredictionTable();
+            
+            // neighborhoods, like the cells learn
+            for (int j = 0; j < this.setsPerTable; j++) {
+                table.add(PredictionTableBenchmark.randomSet(random, 64, 4), 1.0 + j);
+            }
+            
+            learned.put(Identifier.of(i), table);
+        }
+        
+        this.file = File.createTempFile("mmesh", ".snapshot");
+        PredictionTableSnapshot.write(learned, this.file);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        this.file.delete();
+    }
+    
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        this.tables = Maps.newLinkedHashMap();
+        
+        for (int i = 0; i < this.tableCount; i++) {
+            this.tables.put(Identifier.of(i), new PredictionTable());
+        }
+    }
+    
+    @Benchmark
+    public int restore() throws IOException {
+        return PredictionTableSnapshot.restore(this.file, this.tables);
+    }
+    
+    @Benchmark
+    public long restoreAndDecode() throws IOException {
+        PredictionTableSnapshot.restore(this.file, this.tables);
+        
+        long count = 0;
+        for (PredictionTable table : this.tables.values()) {
+            table.getPrediction(IdentifierSet.EMPTY);
+            count += table.getCount();
+        }
+        
+        return count;
+    }
+}
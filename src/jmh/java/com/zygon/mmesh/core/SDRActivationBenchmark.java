@@ -0,0 +1,96 @@
+
+package com.zygon.mmesh.core;
+
+import com.zygon.mmesh.Identifier;
+import com.zygon.mmesh.message.Message;
+import com.zygon.mmesh.message.MessageQueue;
+import com.zygon.mmesh.sdr.SDR;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end: one SDR activation, fanned out by the group and then processed 
+ * by every cell until all the queues (including the prediction traffic the 
+ * cells send each other) are empty.  The cells are driven inline rather than 
+ * started so the numbers don't depend on the cell schedule.
+ *
+ * @author zygon
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dmmesh.verbose=false", "-Xmx4g"})
+public class SDRActivationBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    private int cellCount;
+    
+    @Param({"4"})
+    private int activeCount;
+    
+    @Param({"BROADCAST", "NEIGHBORHOOD"})
+    private CellGroup.Routing routing;
+    
+    @Param({"8"})
+    private int radius;
+    
+    @Param({"false", "true"})
+    private boolean batched;
+    
+    private CellGroup cellGroup;
+    private SDR sdr;
+    private int step = 0;
+    
+    @Setup
+    public void setup() {
+        this.cellGroup = new CellGroup(Identifier.of(0), this.cellCount);
+        this.cellGroup.setRouting(this.routing, this.radius);
+        this.sdr = new SDR(this.cellGroup, this.batched);
+    }
+    
+    private void drain() {
+        boolean processed = true;
+        
+        while (processed) {
+            processed = false;
+            
+            for (Cell cell : this.cellGroup.getCells()) {
+                MessageQueue queue = cell.getQueue();
+                
+                while (queue.hasMessage()) {
+                    Message message = queue.get();
+                    cell.run(message);
+                    processed = true;
+                }
+            }
+        }
+    }
+    
+    @Benchmark
+    public CellGroup activate() {
+        Identifier[] ids = new Identifier[this.activeCount];
+        
+        // walk a short sequence through the group so predictions get learned
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = Identifier.of((this.step + i) % this.cellCount);
+        }
+        this.step = (this.step + 1) % this.cellCount;
+        
+        this.sdr.activate(ids, ids);
+        this.drain();
+        
+        return this.cellGroup;
+    }
+}
@@ -0,0 +1,79 @@
+package com.zygon.mmesh.core;
+
+import com.zygon.mmesh.Identifier;
+import com.zygon.mmesh.sdr.SDR;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How the sharded runtime scales with its shard count: a frame of SDR 
+ * activations through a started group, until the group is idle again.  
+ * Compare the shard counts up to the machine's core count, past it the 
+ * shards only share the cores.
+ *
+ * @author zygon
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dmmesh.verbose=false", "-Xmx4g"})
+public class ShardedCellRuntimeBenchmark {
+    
+    @Param({"1", "2", "4", "8"})
+    private int shardCount;
+    
+    @Param({"1000"})
+    private int cellCount;
+    
+    // Spread over the group so every shard has work
+    @Param({"64"})
+    private int activeCount;
+    
+    private CellGroup cellGroup;
+    private SDR sdr;
+    private int step = 0;
+    
+    @Setup
+    public void setup() {
+        this.cellGroup = new CellGroup(Identifier.of(0), this.cellCount, new ShardedCellRuntime(this.shardCount, 64));
+        this.cellGroup.doStart();
+        this.sdr = new SDR(this.cellGroup);
+    }
+    
+    @TearDown
+    public void tearDown() {
+        this.cellGroup.doStop();
+    }
+    
+    @Benchmark
+    public CellGroup frame() {
+        Identifier[] ids = new Identifier[this.activeCount];
+        int stride = this.cellCount / this.activeCount;
+        
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = Identifier.of((this.step + i * stride) % this.cellCount);
+        }
+        this.step = (this.step + 1) % this.cellCount;
+        
+        this.sdr.activate(ids, ids);
+        
+        while (!this.cellGroup.isIdle()) {
+            Thread.yield();
+        }
+        
+        return this.cellGroup;
+    }
+}
@@ -0,0 +1,67 @@
+
+package com.zygon.mmesh.message;
+
+import com.zygon.mmesh.Identifier;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the messages the cells send each other, run with -prof gc to 
+ * see the bytes allocated per message (gc.alloc.rate.norm).
+ *
+ * @author zygon
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dmmesh.verbose=false")
+public class MessageBenchmark {
+    
+    @Param({"4", "32"})
+    private int activeCount;
+    
+    private final Identifier source = Identifier.of(0);
+    private final Identifier destination = Identifier.of(1);
+    private Set<Identifier> actives;
+    private PredictionMessage prediction;
+    
+    @Setup
+    public void setup() {
+        this.actives = new TreeSet<Identifier>();
+        
+        for (int i = 0; i < this.activeCount; i++) {
+            this.actives.add(Identifier.of(i + 2));
+        }
+        
+        this.prediction = new PredictionMessage(this.source, this.destination, 1.0, this.actives);
+    }
+    
+    @Benchmark
+    public Message createActivation() {
+        return new ActivationMessage(this.destination, 1.0, 1L);
+    }
+    
+    @Benchmark
+    public Message createPrediction() {
+        return new PredictionMessage(this.source, this.destination, 1.0, 1L, this.actives);
+    }
+    
+    @Benchmark
+    public Message setSource() {
+        return this.prediction.setSource(this.destination);
+    }
+}
@@ -0,0 +1,80 @@
+
+package com.zygon.mmesh.message;
+
+import com.google.common.collect.ImmutableSet;
+import com.zygon.mmesh.Identifier;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding a prediction, and reading single fields through a
+ * view.  Run with -prof gc for the allocations.
+ *
+ * @author zygon
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dmmesh.verbose=false")
+public class MessageCodecBenchmark {
+    
+    @Param({"4", "40"})
+    private int activeCount;
+    
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final MessageView view = new MessageView();
+    private PredictionMessage message;
+    
+    @Setup
+    public void setup() {
+        ImmutableSet.Builder<Identifier> actives = ImmutableSet.builder();
+        
+        // clustered like an SDR's actives
+        for (int i = 0; i < this.activeCount; i++) {
+            actives.add(Identifier.of(500 + i * 3));
+        }
+        
+        this.message = new PredictionMessage(Identifier.of(3), Identifier.of(7), 1.0, 12345, actives.build());
+        
+        MessageCodec.encode(this.message, this.buffer);
+        this.buffer.flip();
+    }
+    
+    @Benchmark
+    public int encode() {
+        ByteBuffer out = this.buffer.duplicate();
+        out.clear();
+        
+        MessageCodec.encode(this.message, out);
+        
+        return out.position();
+    }
+    
+    @Benchmark
+    public Message decode() {
+        return MessageCodec.decode(this.buffer.duplicate());
+    }
+    
+    @Benchmark
+    public Identifier viewDestination() {
+        return this.view.wrap(this.buffer, 0).getDestination();
+    }
+    
+    @Benchmark
+    public int viewActiveCount() {
+        return this.view.wrap(this.buffer, 0).getActiveCount();
+    }
+}
@@ -0,0 +1,96 @@
+
+package com.zygon.mmesh.message;
+
+import com.google.common.base.Supplier;
+import com.zygon.mmesh.Identifier;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * A burst of puts then a batch drain, per message, for each mailbox 
+ * implementation.
+ *
+ * @author zygon
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dmmesh.verbose=false")
+public class MessageQueueBenchmark {
+    
+    private static final int BURST = 64;
+    
+    public static enum QueueType {
+        BLOCKING {
+            @Override
+            public Supplier<MessageQueue> supplier() {
+                return MessageQueues.blocking();
+            }
+        },
+        MPSC {
+            @Override
+            public Supplier<MessageQueue> supplier() {
+                return MessageQueues.mpsc();
+            }
+        };
+        
+        public abstract Supplier<MessageQueue> supplier();
+    }
+    
+    @Param({"BLOCKING", "MPSC"})
+    private QueueType queueType;
+    
+    private MessageQueue queue;
+    private Message message;
+    
+    @Setup
+    public void setup() {
+        this.queue = this.queueType.supplier().get();
+        this.message = new ActivationMessage(Identifier.of(0), 1.0);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int putAndDrain(final Blackhole blackhole) {
+        for (int i = 0; i < BURST; i++) {
+            this.queue.put(this.message);
+        }
+        
+        return this.queue.drain(new MessageQueue.Handler() {
+            @Override
+            public void handle(Message message) {
+                blackhole.consume(message);
+            }
+        }, BURST);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int putAndPoll() {
+        int polled = 0;
+        
+        for (int i = 0; i < BURST; i++) {
+            this.queue.put(this.message);
+        }
+        
+        while (this.queue.poll() != null) {
+            polled++;
+        }
+        
+        return polled;
+    }
+}
@@ -0,0 +1,69 @@
+
+package com.zygon.mmesh.message;
+
+import com.zygon.mmesh.Identifier;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A burst of twice the queue's capacity, per message, then a drain. Half 
+ * the burst overflows. BLOCK runs with a zero timeout so it drops instead 
+ * of waiting forever.  The activations go to a handful of destinations so 
+ * COALESCE has duplicates to fold.
+ *
+ * @author zygon
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dmmesh.verbose=false")
+public class MessageQueueOverflowBenchmark {
+    
+    private static final int CAPACITY = 64;
+    private static final int BURST = CAPACITY * 2;
+    
+    @Param({"BLOCK", "DROP_OLDEST", "DROP_NEWEST", "COALESCE"})
+    private MessageQueue.OverflowPolicy overflowPolicy;
+    
+    private MessageQueue queue;
+    private Message[] messages;
+    
+    @Setup
+    public void setup() {
+        this.queue = MessageQueues.blocking(CAPACITY, this.overflowPolicy, 0, TimeUnit.NANOSECONDS).get();
+        this.messages = new Message[BURST];
+        
+        for (int i = 0; i < this.messages.length; i++) {
+            this.messages[i] = new ActivationMessage(Identifier.of(i % 16), 1.0);
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int burst() {
+        int polled = 0;
+        
+        for (Message message : this.messages) {
+            this.queue.put(message);
+        }
+        
+        while (this.queue.poll() != null) {
+            polled++;
+        }
+        
+        return polled;
+    }
+}
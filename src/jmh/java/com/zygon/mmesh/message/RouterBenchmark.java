@@ -0,0 +1,103 @@
+
+package com.zygon.mmesh.message;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.zygon.mmesh.Identifier;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Routing a prediction to a neighbor, including the enqueue and the dequeue
+ * on the receiving side (otherwise the bounded queue would fill up).
+ *
+ * @author zygon
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dmmesh.verbose=false")
+public class RouterBenchmark {
+
+    private static final class Neighbor implements Destination {
+        
+        private final Identifier id;
+        private final MessageQueue queue = new BlockingMessageQueue();
+
+        public Neighbor(Identifier id) {
+            this.id = id;
+        }
+        
+        @Override
+        public MessageQueue getQueue() {
+            return this.queue;
+        }
+
+        @Override
+        public Identifier getIdentifier() {
+            return this.id;
+        }
+    }
+    
+    @Param({"10", "1000"})
+    private int neighborCount;
+    
+    private final Identifier sourceId = Identifier.of(-1);
+    private Router router;
+    private Neighbor[] neighbors;
+    private PredictionMessage[] messages;
+    private int next = 0;
+    
+    @Setup
+    public void setup() {
+        Collection<Destination> destinations = Lists.newArrayList();
+        
+        this.neighbors = new Neighbor[this.neighborCount];
+        this.messages = new PredictionMessage[this.neighborCount];
+        
+        for (int i = 0; i < this.neighbors.length; i++) {
+            this.neighbors[i] = new Neighbor(Identifier.of(i));
+            destinations.add(this.neighbors[i]);
+            
+            Set<Identifier> actives = Sets.newHashSet(this.sourceId);
+            this.messages[i] = new PredictionMessage(this.sourceId, this.neighbors[i].getIdentifier(), 1.0, actives);
+        }
+        
+        this.router = new Router(this.sourceId);
+        this.router.setDestinations(destinations);
+    }
+    
+    @Benchmark
+    public Message send() {
+        int i = this.next++ % this.neighbors.length;
+        
+        this.router.send(this.sourceId, this.messages[i]);
+        
+        return this.neighbors[i].getQueue().get();
+    }
+    
+    @Benchmark
+    public Message createAndSend() {
+        int i = this.next++ % this.neighbors.length;
+        
+        PredictionMessage msg = new PredictionMessage(this.sourceId, this.neighbors[i].getIdentifier(), 1.0, 
+                this.messages[i].getActives());
+        this.router.send(this.sourceId, msg);
+        
+        return this.neighbors[i].getQueue().get();
+    }
+}
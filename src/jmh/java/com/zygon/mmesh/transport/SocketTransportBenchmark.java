@@ -0,0 +1,118 @@
+
+package com.zygon.mmesh.transport;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.zygon.mmesh.Identifier;
+import com.zygon.mmesh.message.Destination;
+import com.zygon.mmesh.message.Message;
+import com.zygon.mmesh.message.PredictionMessage;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Predictions sent to another transport over loopback, timed until the
+ * receiving side has decoded all of them.  A batch size of 1 is a write per
+ * message.
+ *
+ * @author zygon
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dmmesh.verbose=false")
+public class SocketTransportBenchmark {
+    
+    private static final int MESSAGES = 1000;
+    
+    @Param({"1", "256"})
+    private int batchSize;
+    
+    @Param({"4", "40"})
+    private int activeCount;
+    
+    private final AtomicLong received = new AtomicLong(0);
+    private SocketTransport sender;
+    private SocketTransport receiver;
+    private Destination[] destinations;
+    private PredictionMessage[] messages;
+    private long expected = 0;
+    
+    @Setup
+    public void setup() throws IOException {
+        InetSocketAddress loopback = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        
+        this.receiver = new SocketTransport(new Transport.Receiver() {
+            @Override
+            public void receive(Message message) {
+                received.incrementAndGet();
+            }
+        }, loopback);
+        this.receiver.start();
+        
+        this.sender = new SocketTransport(new Transport.Receiver() {
+            @Override
+            public void receive(Message message) {
+            }
+        }, loopback, this.batchSize);
+        this.sender.start();
+        
+        List<Identifier> remoteIds = Lists.newArrayList();
+        for (int i = 0; i < 100; i++) {
+            remoteIds.add(Identifier.of(i));
+        }
+        
+        this.destinations = this.sender.connect(this.receiver.getLocalAddress(), remoteIds).toArray(new Destination[0]);
+        
+        Set<Identifier> actives = ImmutableSet.copyOf(remoteIds.subList(0, this.activeCount));
+        this.messages = new PredictionMessage[this.destinations.length];
+        
+        for (int i = 0; i < this.messages.length; i++) {
+            this.messages[i] = new PredictionMessage(Identifier.of(-1), this.destinations[i].getIdentifier(), 1.0, 0, actives);
+        }
+    }
+    
+    @TearDown
+    public void tearDown() {
+        this.sender.stop();
+        this.receiver.stop();
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public long send() {
+        for (int i = 0; i < MESSAGES; i++) {
+            int dest = i % this.destinations.length;
+            this.destinations[dest].getQueue().put(this.messages[dest]);
+        }
+        
+        this.expected += MESSAGES;
+        
+        while (this.received.get() < this.expected) {
+            LockSupport.parkNanos(1000);
+        }
+        
+        return this.expected;
+    }
+}
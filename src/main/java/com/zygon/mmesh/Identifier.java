@@ -6,34 +6,33 @@ import java.util.Arrays;
 
 /**
  * This impl might change tremendously
+ * 
+ * Identifiers are interned by the {@link IdentifierRegistry}, there is only 
+ * ever one instance per coordinate and each has a dense int index.
  *
  * @author zygon
  */
 public class Identifier implements Comparable<Identifier> {
 
+    public static Identifier of(int coord) {
+        return IdentifierRegistry.getInstance().get(coord);
+    }
+    
+    public static Identifier of(int ...coords) {
+        return IdentifierRegistry.getInstance().get(coords);
+    }
+    
+    private final int index;
     private final int[] coordinates;
     private final int dims;
-    private final String display;
     
-    private int hash = -1;
+    // Built on demand, only needed for printing
+    private String display = null;
 
-    public Identifier(int ...coords) {
-        Preconditions.checkArgument(coords != null);
-        Preconditions.checkArgument(coords.length > 0);
-        
+    /*pkg*/ Identifier(int index, int[] coords) {
+        this.index = index;
         this.coordinates = coords;
         this.dims = this.coordinates.length;
-        
-        StringBuilder sb = new StringBuilder();
-        
-        for (int i = 0; i < this.coordinates.length; i++) {
-            sb.append(this.coordinates[i]);
-            if (i < this.coordinates.length - 1) {
-                sb.append("_");
-            }
-        }
-        
-        this.display = sb.toString();
     }
     
     /*
@@ -55,35 +54,63 @@ public class Identifier implements Comparable<Identifier> {
     
     @Override
     public int compareTo(Identifier o) {
-        return o.hashCode() > this.hashCode() ? -1 : (o.hashCode() < this.hashCode() ? 1 : 0);
+        return this.index < o.index ? -1 : (this.index > o.index ? 1 : 0);
     }
     
+    // Interned, so the index (or the reference) is the identity
     @Override
     public boolean equals(Object obj) {
-        if (obj == null) {
-            return false;
+        if (obj == this) {
+            return true;
         }
         
         if (!(obj instanceof Identifier)) {
             return false;
         }
         
-        return this.hashCode() == ((Identifier)obj).hashCode();
+        return this.index == ((Identifier)obj).index;
     }
 
     @Override
     public final int hashCode() {
-        
-        if (this.hash == -1) {
-            this.hash = Arrays.hashCode(this.coordinates);
-        }
-        
-        return this.hash;
+        return this.index;
+    }
+    
+    public int getCoordinate(int dim) {
+        return this.coordinates[dim];
+    }
+    
+    public int[] getCoordinates() {
+        return Arrays.copyOf(this.coordinates, this.coordinates.length);
+    }
+    
+    public int getDimensions() {
+        return this.dims;
     }
     
     public String getDisplay() {
+        if (this.display == null) {
+            StringBuilder sb = new StringBuilder();
+
+            for (int i = 0; i < this.coordinates.length; i++) {
+                sb.append(this.coordinates[i]);
+                if (i < this.coordinates.length - 1) {
+                    sb.append("_");
+                }
+            }
+
+            this.display = sb.toString();
+        }
+        
         return this.display;
     }
+    
+    /**
+     * The dense index given out by the {@link IdentifierRegistry}.
+     */
+    public int getIndex() {
+        return this.index;
+    }
 
     @Override
     public String toString() {
@@ -0,0 +1,159 @@
+
+package com.zygon.mmesh;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interns Identifiers: every coordinate gets exactly one Identifier instance
+ * and a dense int index (0, 1, 2, ...) which can be used to key tables and 
+ * arrays instead of the Identifier itself.  Identifiers are never released.
+ *
+ * @author zygon
+ */
+public final class IdentifierRegistry {
+    
+    // Lookup key for the coordinates, Identifiers can't be used because 
+    // their equality is the index.
+    private static final class Coordinates {
+        
+        private final int[] coords;
+        private final int hash;
+
+        public Coordinates(int[] coords) {
+            this.coords = coords;
+            this.hash = Arrays.hashCode(coords);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Coordinates && Arrays.equals(this.coords, ((Coordinates) obj).coords);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+    
+    private static final IdentifierRegistry INSTANCE = new IdentifierRegistry();
+    
+    public static IdentifierRegistry getInstance() {
+        return INSTANCE;
+    }
+    
+    private final ConcurrentMap<Coordinates, Identifier> identifiersByCoordinates = Maps.newConcurrentMap();
+    
+    // Both only ever grow, and only under the lock. The 1D cells are by far 
+    // the most common so they get looked up without a key allocation.
+    private volatile Identifier[] identifiersByIndex = new Identifier[1024];
+    private volatile Identifier[] oneDimensional = new Identifier[1024];
+    private int size = 0;
+    
+    private IdentifierRegistry() {
+    }
+    
+    private static Identifier[] grow(Identifier[] identifiers, int minSize) {
+        return Arrays.copyOf(identifiers, Math.max(minSize, identifiers.length * 2));
+    }
+    
+    private synchronized Identifier intern(int[] coords) {
+        Coordinates key = new Coordinates(coords);
+        Identifier id = this.identifiersByCoordinates.get(key);
+        
+        if (id == null) {
+            int[] copy = Arrays.copyOf(coords, coords.length);
+            id = new Identifier(this.size, copy);
+            
+            Identifier[] byIndex = this.identifiersByIndex;
+            if (this.size == byIndex.length) {
+                byIndex = grow(byIndex, this.size + 1);
+            }
+            byIndex[this.size] = id;
+            this.identifiersByIndex = byIndex;
+            this.size++;
+            
+            this.identifiersByCoordinates.put(new Coordinates(copy), id);
+            
+            if (copy.length == 1 && copy[0] >= 0) {
+                Identifier[] oneDims = this.oneDimensional;
+                if (copy[0] >= oneDims.length) {
+                    oneDims = grow(oneDims, copy[0] + 1);
+                }
+                oneDims[copy[0]] = id;
+                this.oneDimensional = oneDims;
+            }
+        }
+        
+        return id;
+    }
+    
+    /**
+     * The 1D case of {@link #get(int...)}, without the varargs array when 
+     * the Identifier exists already.
+     */
+    public Identifier get(int coord) {
+        Identifier[] oneDims = this.oneDimensional;
+        
+        if (coord >= 0 && coord < oneDims.length) {
+            Identifier id = oneDims[coord];
+            
+            if (id != null) {
+                return id;
+            }
+        }
+        
+        return this.get(new int[]{coord});
+    }
+    
+    /**
+     * Returns the one Identifier for these coordinates, creating it if 
+     * needed. The coordinates are copied.
+     */
+    public Identifier get(int ...coords) {
+        Preconditions.checkArgument(coords != null);
+        Preconditions.checkArgument(coords.length > 0);
+        
+        if (coords.length == 1 && coords[0] >= 0) {
+            Identifier[] oneDims = this.oneDimensional;
+            
+            if (coords[0] < oneDims.length) {
+                Identifier id = oneDims[coords[0]];
+                
+                if (id != null) {
+                    return id;
+                }
+            }
+        } else {
+            Identifier id = this.identifiersByCoordinates.get(new Coordinates(coords));
+            
+            if (id != null) {
+                return id;
+            }
+        }
+        
+        return this.intern(coords);
+    }
+    
+    /**
+     * Returns the Identifier previously given out with this index.
+     */
+    public Identifier getByIndex(int index) {
+        Identifier[] byIndex = this.identifiersByIndex;
+        
+        Preconditions.checkElementIndex(index, byIndex.length);
+        Identifier id = byIndex[index];
+        Preconditions.checkArgument(id != null, "Unknown index %s", index);
+        
+        return id;
+    }
+    
+    /**
+     * The number of Identifiers handed out so far, all indexes are below this.
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+}
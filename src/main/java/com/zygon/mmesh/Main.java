@@ -1,51 +1,151 @@
 package com.zygon.mmesh;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import com.zygon.mmesh.core.CellGroup;
+import com.zygon.mmesh.core.EventDrivenCellRuntime;
+import com.zygon.mmesh.core.PredictionLog;
+import com.zygon.mmesh.message.MessageQueues;
+import com.zygon.mmesh.message.Message;
 import com.zygon.mmesh.sdr.SDR;
+import com.zygon.mmesh.transport.SocketTransport;
+import com.zygon.mmesh.transport.Transport;
+import java.io.File;
 import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 
 public class Main {
     
     private static final int CELL_COUNT = 10;
     
+    // Activations stay for this many steps
+    private static final long EXPIRY_STEPS = 5;
+    
+    // Where the learned tables are kept between runs, if anywhere
+    private static final String SNAPSHOT = System.getProperty("mmesh.snapshot");
+    
+    // Where every add is logged, if anywhere, checkpointed every minute.  
+    // Takes the place of the snapshot.
+    private static final String LOG = System.getProperty("mmesh.log");
+    
+    // Retries until the peer process is up
+    private static void connect(Transport transport, CellGroup cellGroup, InetSocketAddress address, 
+            int firstCell, int cellCount) throws IOException {
+        
+        List<Identifier> remoteIds = Lists.newArrayList();
+        for (int i = firstCell; i < firstCell + cellCount; i++) {
+            remoteIds.add(Identifier.of(i));
+        }
+        
+        for (int tries = 0; ; tries++) {
+            try {
+                cellGroup.addRemoteDestinations(transport.connect(address, remoteIds));
+                return;
+            } catch (ConnectException ce) {
+                if (tries == 100) {
+                    throw ce;
+                }
+                try { Thread.sleep(100); } catch (InterruptedException ignore) {}
+            }
+        }
+    }
+    
+    /**
+     * With no arguments runs one group in this process.  Otherwise runs a 
+     * part of a group spread over several local processes:
+     * 
+     * <pre>
+     *   Main port firstCell cellCount [peerPort:peerFirstCell:peerCellCount ...]
+     * </pre>
+     * 
+     * The process with cell 0 feeds the input, the others just take part.
+     */
     public static void main(String[] args) throws IOException {
+        Preconditions.checkArgument(args.length == 0 || args.length >= 3, 
+                "Usage: port firstCell cellCount [peerPort:peerFirstCell:peerCellCount ...]");
+        
+        int firstCell = args.length > 0 ? Integer.parseInt(args[1]) : 0;
+        int cellCount = args.length > 0 ? Integer.parseInt(args[2]) : CELL_COUNT;
+        int totalCells = cellCount;
+        
+        final CellGroup cellGroup = new CellGroup(Identifier.of(0), firstCell, cellCount, new EventDrivenCellRuntime(), 
+                MessageQueues.blocking(), EXPIRY_STEPS);
+        
+        Transport transport = null;
+        
+        if (args.length > 0) {
+            transport = new SocketTransport(new Transport.Receiver() {
+                @Override
+                public void receive(Message message) {
+                    cellGroup.receive(message);
+                }
+            }, new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(args[0])));
+            transport.start();
+            
+            for (int i = 3; i < args.length; i++) {
+                String[] peer = args[i].split(":");
+                int peerCount = Integer.parseInt(peer[2]);
+                
+                connect(transport, cellGroup, new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(peer[0])), 
+                        Integer.parseInt(peer[1]), peerCount);
+                totalCells += peerCount;
+            }
+        }
+        
+        if (LOG != null) {
+            System.out.println("Replayed " + cellGroup.openLog(new PredictionLog(new File(LOG)), 1, TimeUnit.MINUTES) + " adds from " + LOG);
+        } else if (SNAPSHOT != null && new File(SNAPSHOT).exists()) {
+            System.out.println("Restored " + cellGroup.restore(new File(SNAPSHOT)) + " cells from " + SNAPSHOT);
+        }
         
-        CellGroup cellGroup = new CellGroup(new Identifier(0), CELL_COUNT);
         cellGroup.doStart();
         
+        if (firstCell != 0) {
+            System.out.println("Enter any key to stop...");
+            System.in.read();
+            
+            cellGroup.doStop();
+            transport.stop();
+            
+            if (SNAPSHOT != null && LOG == null) {
+                cellGroup.snapshot(new File(SNAPSHOT));
+            }
+            return;
+        }
+        
         SDR sdr = new SDR(cellGroup);
+        List<Identifier[]> steps = Lists.newArrayList();
         
         for (int i = 1; i <= 3; i++) {
             
-            int prevSourceId = -1;
-            int sourceId = -1;
-            int destId = -1;
-            
-            for (int j = 0; j < 10; j++) {
-                
-                if (prevSourceId == -1) {
-                    sourceId = 0;
-                    prevSourceId = 0;
-                } else {
-                    prevSourceId = destId;
-                    sourceId = prevSourceId;
-                }
-                
-                destId = j;
-                
-                Identifier source = new Identifier(sourceId);
-                Identifier target = new Identifier(destId);
-                
-                sdr.activate(new Identifier[]{source}, new Identifier[]{target});
-                
-                try { Thread.sleep(200); } catch (Throwable ignore) {}
+            for (int destId = 0; destId < totalCells; destId++) {
+                steps.add(new Identifier[]{Identifier.of(destId)});
             }
         }
         
+        // No pacing needed, the steps are counted rather than timed
+        sdr.replay(steps);
+        
+        if (transport != null) {
+            // isIdle() only knows about this process
+            System.out.println("Enter any key to stop...");
+            System.in.read();
+            
+            transport.stop();
+        }
+
 //        System.out.println("Enter any key to continue...");
 //        System.in.read();
-
+        
         cellGroup.doStop();
+        
+        if (SNAPSHOT != null && LOG == null) {
+            cellGroup.snapshot(new File(SNAPSHOT));
+        }
     }
 }
@@ -1,66 +1,85 @@
 
 package com.zygon.mmesh.core;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.google.common.collect.Sets;
 import com.zygon.mmesh.Identifier;
 import com.zygon.mmesh.message.ActivationMessage;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
 /**
+ * The recently active identifiers.  Activations expire either after a wall
+ * clock timeout or, with a logical clock, after a number of steps - the 
+ * step being the latest message timestamp the table has been advanced to.
+ * 
+ * The factory methods give the primitive {@link ArrayActivationTable}, 
+ * {@link CacheActivationTable} is the original Guava cache one.
  *
  * @author zygon
  */
-public class ActivationTable {
-
-    private static LoadingCache<Identifier, Identifier> createIdentifierCache (long timeout, TimeUnit units) {
-        
-        LoadingCache<Identifier, Identifier> cache = 
-            CacheBuilder.newBuilder()
-                .expireAfterWrite(timeout, units)
-                .build(
-                    new CacheLoader<Identifier, Identifier>() {
-                        @Override
-                        public Identifier load(Identifier key) throws Exception {
-                            return key;
-                        }
-                    }
-                );
-        
-        return cache;
+public abstract class ActivationTable {
+    
+    /**
+     * Sees each active identifier, see {@link #forEachActive(Visitor)}.
+     */
+    public static interface Visitor {
+        public void visit(Identifier id);
     }
     
-    private final LoadingCache<Identifier,Identifier> cache = createIdentifierCache(1, TimeUnit.SECONDS);
-
-    public final void add (ActivationMessage msg) throws ExecutionException {
-        this.cache.put(msg.getDestination(), msg.getDestination());
+    public static ActivationTable expireAfter(long timeout, TimeUnit units) {
+        return new ArrayActivationTable(timeout, units);
     }
     
-    public final long getCount() {
-        return this.cache.size();
+    /**
+     * A logical clock table, activations expire once the table has been 
+     * advanced expirySteps past them.
+     */
+    public static ActivationTable expireAfterSteps(long expirySteps) {
+        return ArrayActivationTable.expireAfterSteps(expirySteps);
     }
     
-    public final Set<Identifier> getAllIdentifiers() {
-        
-        Set<Identifier> sources = Sets.newHashSet();
-        
-        // light copy - hopefully this won't cause issues
-        for (Identifier id : this.cache.asMap().values()) {
-            sources.add(id);
-        }
-        
-        return sources;
+    public final void add (ActivationMessage msg) {
+        this.add(msg.getDestination());
     }
     
-    public final boolean contains(Identifier id) {
-        return this.cache.getIfPresent(id) != null;
+    public abstract void add (Identifier id);
+    
+    /**
+     * Adds all but the excluded identifier, e.g. a cell's own id.
+     */
+    public void addAll (Iterable<Identifier> ids, Identifier excluded) {
+        for (Identifier id : ids) {
+            if (!id.equals(excluded)) {
+                this.add(id);
+            }
+        }
     }
     
-    public final boolean isEmpty() {
-        return this.cache.size() == 0;
+    /**
+     * Moves a logical clock forward to the given step, never back. Does 
+     * nothing for a wall clock table.
+     */
+    public abstract void advanceTo(long step);
+    
+    /**
+     * Hands each active identifier to the visitor without allocating.
+     */
+    public abstract void forEachActive(Visitor visitor);
+    
+    public abstract long getCount();
+    
+    public abstract Set<Identifier> getAllIdentifiers();
+    
+    /**
+     * The active identifiers as an IdentifierSet, without going through an
+     * intermediate Set.
+     */
+    public abstract IdentifierSet getActiveSet();
+    
+    public abstract boolean contains(Identifier id);
+    
+    public boolean isEmpty() {
+        return this.getCount() == 0;
     }
+    
+    public abstract boolean isLogical();
 }
@@ -0,0 +1,47 @@
+
+package com.zygon.mmesh.core;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Cells as actors: each cell is just a mailbox, multiplexed over one 
+ * work-stealing pool sized to the cores, so a group's thread count has 
+ * nothing to do with its cell count.
+ * 
+ * Messages sent from a cell to another (the predictions) schedule the 
+ * receiver on the sending worker's own deque, idle workers steal from there.
+ *
+ * @author zygon
+ */
+public class ActorCellRuntime extends EventDrivenCellRuntime {
+    
+    private final ForkJoinPool pool;
+    
+    private ActorCellRuntime(ForkJoinPool pool, int batchSize) {
+        super(pool, true, batchSize, Fairness.FAIR);
+        this.pool = pool;
+    }
+    
+    public ActorCellRuntime(int parallelism, int batchSize) {
+        // async mode: FIFO local queues, the usual choice for message passing
+        this(new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true), batchSize);
+    }
+    
+    public ActorCellRuntime() {
+        this(Runtime.getRuntime().availableProcessors(), 64);
+    }
+    
+    @Override
+    protected void schedule(Runnable mailbox) {
+        if (ForkJoinTask.getPool() == this.pool) {
+            ForkJoinTask.adapt(mailbox).fork();
+        } else {
+            this.pool.execute(mailbox);
+        }
+    }
+    
+    public int getParallelism() {
+        return this.pool.getParallelism();
+    }
+}
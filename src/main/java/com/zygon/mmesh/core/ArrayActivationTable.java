@@ -0,0 +1,194 @@
+
+package com.zygon.mmesh.core;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+import com.zygon.mmesh.Identifier;
+import com.zygon.mmesh.IdentifierRegistry;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An activation table on primitive arrays: the registry indices of the 
+ * actives, sorted, each with the stamp (time or step) it was last added at.
+ * Active sets are small so an insert is a binary search and a short array 
+ * copy, and being sorted already the keys go straight into an IdentifierSet.
+ * 
+ * Expiry is lazy: nothing is scanned until the oldest stamp can have 
+ * expired.  The IdentifierSet is kept until the members change, so the 
+ * per-message getActiveSet() usually costs nothing.
+ * 
+ * Meant for its cell's thread, the locking is only so that printing from 
+ * other threads is safe.
+ *
+ * @author zygon
+ */
+public class ArrayActivationTable extends ActivationTable {
+    
+    private static final int INITIAL_CAPACITY = 16;
+    
+    public static ArrayActivationTable expireAfterSteps(long expirySteps) {
+        Preconditions.checkArgument(expirySteps > 0);
+        
+        return new ArrayActivationTable(expirySteps, true);
+    }
+    
+    private final long ttl;
+    private final boolean logical;
+    private long step = 0;
+    
+    private int[] keys = new int[INITIAL_CAPACITY];
+    private long[] stamps = new long[INITIAL_CAPACITY];
+    private int size = 0;
+    
+    // No stamp is older than this
+    private long oldestStamp = 0;
+    
+    // Null when the members have changed since it was built
+    private IdentifierSet activeSet = IdentifierSet.EMPTY;
+    
+    private ArrayActivationTable(long ttl, boolean logical) {
+        this.ttl = ttl;
+        this.logical = logical;
+    }
+    
+    public ArrayActivationTable(long timeout, TimeUnit units) {
+        this(units.toNanos(timeout), false);
+        Preconditions.checkArgument(timeout > 0);
+    }
+    
+    private long now() {
+        return this.logical ? this.step : System.nanoTime();
+    }
+    
+    // Drops whatever has expired, compacting in place
+    private void expire(long now) {
+        if (this.size == 0 || now - this.oldestStamp < this.ttl) {
+            return;
+        }
+        
+        int kept = 0;
+        long oldest = now;
+        
+        for (int i = 0; i < this.size; i++) {
+            long stamp = this.stamps[i];
+            
+            if (now - stamp < this.ttl) {
+                this.keys[kept] = this.keys[i];
+                this.stamps[kept] = stamp;
+                kept++;
+                
+                if (stamp - oldest < 0) {
+                    oldest = stamp;
+                }
+            }
+        }
+        
+        if (kept != this.size) {
+            this.size = kept;
+            this.activeSet = null;
+        }
+        
+        this.oldestStamp = oldest;
+    }
+    
+    @Override
+    public synchronized void add(Identifier id) {
+        long now = this.now();
+        this.expire(now);
+        
+        int key = id.getIndex();
+        int idx = Arrays.binarySearch(this.keys, 0, this.size, key);
+        
+        // already active, just refresh it
+        if (idx >= 0) {
+            this.stamps[idx] = now;
+            return;
+        }
+        
+        idx = -idx - 1;
+        
+        if (this.size == this.keys.length) {
+            this.keys = Arrays.copyOf(this.keys, this.size * 2);
+            this.stamps = Arrays.copyOf(this.stamps, this.size * 2);
+        }
+        
+        System.arraycopy(this.keys, idx, this.keys, idx + 1, this.size - idx);
+        System.arraycopy(this.stamps, idx, this.stamps, idx + 1, this.size - idx);
+        
+        this.keys[idx] = key;
+        this.stamps[idx] = now;
+        
+        if (this.size++ == 0) {
+            this.oldestStamp = now;
+        }
+        
+        this.activeSet = null;
+    }
+    
+    @Override
+    public synchronized void advanceTo(long step) {
+        if (this.logical && step > this.step) {
+            this.step = step;
+        }
+    }
+    
+    @Override
+    public synchronized boolean contains(Identifier id) {
+        this.expire(this.now());
+        
+        return Arrays.binarySearch(this.keys, 0, this.size, id.getIndex()) >= 0;
+    }
+    
+    @Override
+    public synchronized void forEachActive(Visitor visitor) {
+        this.expire(this.now());
+        
+        IdentifierRegistry registry = IdentifierRegistry.getInstance();
+        
+        for (int i = 0; i < this.size; i++) {
+            visitor.visit(registry.getByIndex(this.keys[i]));
+        }
+    }
+    
+    @Override
+    public synchronized IdentifierSet getActiveSet() {
+        this.expire(this.now());
+        
+        IdentifierSet set = this.activeSet;
+        
+        if (set == null) {
+            set = IdentifierSet.fromSortedIndices(this.keys, this.size);
+            this.activeSet = set;
+        }
+        
+        return set;
+    }
+    
+    @Override
+    public synchronized Set<Identifier> getAllIdentifiers() {
+        this.expire(this.now());
+        
+        IdentifierRegistry registry = IdentifierRegistry.getInstance();
+        Set<Identifier> ids = Sets.newHashSetWithExpectedSize(this.size);
+        
+        for (int i = 0; i < this.size; i++) {
+            ids.add(registry.getByIndex(this.keys[i]));
+        }
+        
+        return ids;
+    }
+    
+    @Override
+    public synchronized long getCount() {
+        this.expire(this.now());
+        
+        return this.size;
+    }
+    
+    @Override
+    public boolean isLogical() {
+        return this.logical;
+    }
+}
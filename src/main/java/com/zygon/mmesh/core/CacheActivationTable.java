@@ -0,0 +1,144 @@
+
+package com.zygon.mmesh.core;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Sets;
+import com.zygon.mmesh.Identifier;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The original activation table, a Guava cache doing the expiry.  The 
+ * logical clock is a Ticker reading the step.
+ *
+ * @author zygon
+ */
+public class CacheActivationTable extends ActivationTable {
+    
+    // Reads the logical step as the cache's nanos
+    private static final class StepTicker extends Ticker {
+        
+        private volatile long step = 0;
+
+        @Override
+        public long read() {
+            return this.step;
+        }
+    }
+
+    private static LoadingCache<Identifier, Identifier> createIdentifierCache (long timeout, TimeUnit units, Ticker ticker) {
+        
+        LoadingCache<Identifier, Identifier> cache = 
+            CacheBuilder.newBuilder()
+                .expireAfterWrite(timeout, units)
+                .ticker(ticker)
+                .build(
+                    new CacheLoader<Identifier, Identifier>() {
+                        @Override
+                        public Identifier load(Identifier key) throws Exception {
+                            return key;
+                        }
+                    }
+                );
+        
+        return cache;
+    }
+    
+    /**
+     * A logical clock table, activations expire once the table has been 
+     * advanced expirySteps past them.
+     */
+    public static CacheActivationTable expireAfterSteps(long expirySteps) {
+        Preconditions.checkArgument(expirySteps > 0);
+        
+        return new CacheActivationTable(expirySteps, TimeUnit.NANOSECONDS, new StepTicker());
+    }
+    
+    private final LoadingCache<Identifier,Identifier> cache;
+    private final StepTicker stepTicker;
+    
+    private CacheActivationTable(long timeout, TimeUnit units, Ticker ticker) {
+        this.cache = createIdentifierCache(timeout, units, ticker);
+        this.stepTicker = ticker instanceof StepTicker ? (StepTicker) ticker : null;
+    }
+    
+    public CacheActivationTable(long timeout, TimeUnit units) {
+        this(timeout, units, Ticker.systemTicker());
+    }
+    
+    @Override
+    public final void advanceTo(long step) {
+        StepTicker ticker = this.stepTicker;
+        
+        // only the owning cell advances it
+        if (ticker != null && step > ticker.step) {
+            ticker.step = step;
+        }
+    }
+    
+    @Override
+    public final boolean isLogical() {
+        return this.stepTicker != null;
+    }
+
+    @Override
+    public final void add (Identifier id) {
+        this.cache.put(id, id);
+    }
+    
+    @Override
+    public final void forEachActive(Visitor visitor) {
+        for (Identifier id : this.cache.asMap().values()) {
+            visitor.visit(id);
+        }
+    }
+    
+    @Override
+    public final long getCount() {
+        return this.cache.size();
+    }
+    
+    @Override
+    public final Set<Identifier> getAllIdentifiers() {
+        
+        Set<Identifier> sources = Sets.newHashSet();
+        
+        // light copy - hopefully this won't cause issues
+        for (Identifier id : this.cache.asMap().values()) {
+            sources.add(id);
+        }
+        
+        return sources;
+    }
+    
+    @Override
+    public final IdentifierSet getActiveSet() {
+        
+        int[] indices = new int[(int) this.cache.size() + 8];
+        int count = 0;
+        
+        for (Identifier id : this.cache.asMap().values()) {
+            if (count == indices.length) {
+                indices = Arrays.copyOf(indices, count * 2);
+            }
+            indices[count++] = id.getIndex();
+        }
+        
+        return IdentifierSet.fromIndices(indices, count);
+    }
+    
+    @Override
+    public final boolean contains(Identifier id) {
+        return this.cache.getIfPresent(id) != null;
+    }
+    
+    @Override
+    public final boolean isEmpty() {
+        return this.cache.size() == 0;
+    }
+}
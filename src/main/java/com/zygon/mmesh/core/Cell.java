@@ -4,16 +4,19 @@ package com.zygon.mmesh.core;
 import com.zygon.mmesh.message.Router;
 import com.zygon.mmesh.message.MessageQueue;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Sets;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.AbstractScheduledService;
 import com.zygon.mmesh.Identifier;
+import com.zygon.mmesh.message.ActivationFrame;
 import com.zygon.mmesh.message.ActivationMessage;
+import com.zygon.mmesh.message.BlockingMessageQueue;
 import com.zygon.mmesh.message.Destination;
 import com.zygon.mmesh.message.Message;
 import com.zygon.mmesh.message.PredictionMessage;
 import java.util.Collection;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * TBD: consider a watcher thread to check on active duty cycles
@@ -32,12 +35,15 @@ public class Cell extends AbstractScheduledService implements Destination {
         }
         
         private String format(ActivationTable table) {
-            StringBuilder sb = new StringBuilder();
+            final StringBuilder sb = new StringBuilder();
             sb.append("{ ");
-            for (Identifier totalBySourceId : table.getAllIdentifiers()) {
-                sb.append(totalBySourceId.getDisplay());
-                sb.append(" ");
-            }
+            table.forEachActive(new ActivationTable.Visitor() {
+                @Override
+                public void visit(Identifier id) {
+                    sb.append(id.getDisplay());
+                    sb.append(" ");
+                }
+            });
             sb.append("}");
             
             return sb.toString();
@@ -48,15 +54,22 @@ public class Cell extends AbstractScheduledService implements Destination {
         }
     }
     
-    private static final boolean VERBOSE = true;
+    // Chatty by default, benchmarks turn this off with -Dmmesh.verbose=false
+    private static final boolean VERBOSE = Boolean.parseBoolean(System.getProperty("mmesh.verbose", "true"));
     
     // This table holds the present activations
-    private final ActivationTable activeTable = new ActivationTable();
+    private final ActivationTable activeTable;
     
     // Thie table holds the present predictions
-    private final PredictionTable predictionTable = new PredictionTable();
+    private final PredictionTable predictionTable;
     
-    private final MessageQueue inputQueue = new MessageQueue();
+    private final MessageQueue inputQueue;
+    private final MessageQueue.Handler handler = new MessageQueue.Handler() {
+        @Override
+        public void handle(Message message) {
+            process(message);
+        }
+    };
 
     private final CellGroup cellGroupId;
     private final Identifier id;
@@ -66,17 +79,36 @@ public class Cell extends AbstractScheduledService implements Destination {
     private volatile boolean isActive = false;
     private volatile boolean isPredicted = false;
     
-    public Cell(CellGroup cellGroupId, Identifier id, Scheduler scheduler) {
+    public Cell(CellGroup cellGroupId, Identifier id, Scheduler scheduler, PredictionTable predictionTable, 
+            ActivationTable activeTable, MessageQueue inputQueue) {
         super();
         Preconditions.checkNotNull(cellGroupId);
         Preconditions.checkNotNull(id);
         Preconditions.checkNotNull(scheduler);
+        Preconditions.checkNotNull(predictionTable);
+        Preconditions.checkNotNull(activeTable);
+        Preconditions.checkNotNull(inputQueue);
         
         this.cellGroupId = cellGroupId;
         this.id = id;
         this.scheduler = scheduler;
+        this.predictionTable = predictionTable;
+        this.activeTable = activeTable;
+        this.inputQueue = inputQueue;
         this.router = new Router(this.id);
     }
+    
+    public Cell(CellGroup cellGroupId, Identifier id, Scheduler scheduler, PredictionTable predictionTable, MessageQueue inputQueue) {
+        this(cellGroupId, id, scheduler, predictionTable, ActivationTable.expireAfter(1, TimeUnit.SECONDS), inputQueue);
+    }
+    
+    public Cell(CellGroup cellGroupId, Identifier id, Scheduler scheduler, PredictionTable predictionTable) {
+        this(cellGroupId, id, scheduler, predictionTable, new BlockingMessageQueue());
+    }
+    
+    public Cell(CellGroup cellGroupId, Identifier id, Scheduler scheduler) {
+        this(cellGroupId, id, scheduler, new PredictionTable());
+    }
 
     /**
      * How many predictors must be active to send positive feedback.  This 
@@ -120,6 +152,10 @@ public class Cell extends AbstractScheduledService implements Destination {
         return this.inputQueue;
     }
     
+    /*pkg*/ PredictionTable getPredictionTable() {
+        return this.predictionTable;
+    }
+    
     public final Router getRouter() {
         return this.router;
     }
@@ -144,10 +180,10 @@ public class Cell extends AbstractScheduledService implements Destination {
         
         this.activeTable.add(message);
         
-        this.isPredicted = this.predictionTable.getPrediction(new IdentifierSet(this.activeTable.getAllIdentifiers())) != PredictionTable.NULL_VALUE;
+        this.isPredicted = this.predictionTable.getPrediction(this.activeTable.getActiveSet()) != PredictionTable.NULL_VALUE;
     }
     
-    private void sendPredictions(Set<Identifier> activeIdentifiers) {
+    private void sendPredictions(IdentifierSet activeIdentifiers) {
         for (Identifier dest : activeIdentifiers) {
             double value = activeIdentifiers.size();
 
@@ -156,13 +192,7 @@ public class Cell extends AbstractScheduledService implements Destination {
             // active - it's implied.
             // E.g. If I'm '3', we can send "1,2" to '1' and '2' but they
             // don't respectively need to know that they are active.
-            Set<Identifier> activeIds = Sets.newHashSet();
-
-            for (Identifier activeId : activeIdentifiers) {
-                if (!activeId.equals(dest)) {
-                    activeIds.add(activeId);
-                }
-            }
+            IdentifierSet activeIds = activeIdentifiers.without(dest);
 
             if (!activeIds.isEmpty()) {
                 PredictionMessage prediction = new PredictionMessage(this.id, dest, value, activeIds);
@@ -177,11 +207,32 @@ public class Cell extends AbstractScheduledService implements Destination {
         Preconditions.checkArgument(message.getType() == Message.Type.ACTIVATION);
         Preconditions.checkArgument(message.getDestination().equals(this.id));
         
+        this.activate(this.activeTable.getActiveSet());
+    }
+    
+    // One SDR step at once: the co-actives go into the table, then we're 
+    // active if we're in the frame (with isPredicted still from the last 
+    // step), then one lookup decides whether the next step is predicted.
+    protected void handleActivationFrame(ActivationFrame frame) throws ExecutionException {
+        Preconditions.checkArgument(frame.getType() == Message.Type.ACTIVATION_FRAME);
+        
+        Set<Identifier> actives = frame.getActives();
+        
+        this.activeTable.addAll(actives, this.id);
+        
+        IdentifierSet activeIdentifiers = this.activeTable.getActiveSet();
+        
+        if (actives.contains(this.id)) {
+            this.activate(activeIdentifiers);
+        }
+        
+        this.isPredicted = this.predictionTable.getPrediction(activeIdentifiers) != PredictionTable.NULL_VALUE;
+    }
+    
+    private void activate(IdentifierSet activeIdentifiers) {
         this.cellGroupId.notifyActive(this.id);
         this.isActive = true;
         
-        Set<Identifier> activeIdentifiers = this.activeTable.getAllIdentifiers();
-        
         // Yay! we were predicted
         if (this.isPredicted) {
             try {
@@ -231,6 +282,9 @@ public class Cell extends AbstractScheduledService implements Destination {
 
                     ActivationMessage msg = (ActivationMessage) incomingMessage;
                     
+                    // With a logical clock the timestamp is the step
+                    this.activeTable.advanceTo(msg.getTimestamp());
+                    
                     if (VERBOSE) {
                         System.out.println(this.id + " received message: " + msg);
                     }
@@ -243,6 +297,20 @@ public class Cell extends AbstractScheduledService implements Destination {
 
                     break;
 
+                case ACTIVATION_FRAME:
+                    
+                    ActivationFrame frame = (ActivationFrame) incomingMessage;
+                    
+                    this.activeTable.advanceTo(frame.getTimestamp());
+                    
+                    if (VERBOSE) {
+                        System.out.println(this.id + " received message: " + frame);
+                    }
+                    
+                    this.handleActivationFrame(frame);
+                    
+                    break;
+                    
                 case PREDICTION:
 
                     PredictionMessage pred = (PredictionMessage) incomingMessage;
@@ -261,12 +329,39 @@ public class Cell extends AbstractScheduledService implements Destination {
             }
 
         } catch (ExecutionException ee) {
-            if (this.isRunning()) {
+            if (this.isLive()) {
                 ee.printStackTrace();
             }
         }
     }
     
+    // Cells run by a CellRuntime other than the scheduler are never started 
+    // as a service, so only a stopped service counts as not live.
+    private boolean isLive() {
+        State state = this.state();
+        return state != State.STOPPING && state != State.TERMINATED;
+    }
+    
+    /*pkg*/ void process(Message incomingMessage) {
+        try {
+            this.run(incomingMessage);
+        } catch (Throwable th) {
+            // Don't let a processing error stop anything
+            // TODO: log
+            if (this.isLive()) {
+                th.printStackTrace();
+            }
+        }
+    }
+    
+    /**
+     * Processes up to max queued messages without blocking. Returns how many
+     * were processed.
+     */
+    /*pkg*/ int process(int max) {
+        return this.inputQueue.drain(this.handler, max);
+    }
+    
     @Override
     protected final void runOneIteration() throws Exception {
 //        while (this.inputQueue.hasMessage()) {
@@ -274,16 +369,7 @@ public class Cell extends AbstractScheduledService implements Destination {
             Message incomingMessage = this.inputQueue.get();
 
             if (incomingMessage != null) {
-
-                try {
-                    this.run(incomingMessage);
-                } catch (Throwable th) {
-                    // Don't let a processing error stop anything
-                    // TODO: log
-                    if (this.isRunning()) {
-                        th.printStackTrace();
-                    }
-                }
+                this.process(incomingMessage);
             } else {
                 if (this.isRunning()) {
                     System.out.println("BAD - should have blocked on receive");
@@ -360,6 +446,10 @@ public class Cell extends AbstractScheduledService implements Destination {
         this.router.setDestinations(neighbors);
     }
     
+    public void setNeighbors(ImmutableMap<Identifier, MessageQueue> queuesById) {
+        this.router.setDestinations(queuesById);
+    }
+    
     @Override
     public String toString() {
         return "{" + this.id + ": A_" + this.activeTable + "|P_" + this.predictionTable + "}";
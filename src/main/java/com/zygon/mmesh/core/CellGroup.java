@@ -2,23 +2,50 @@
 package com.zygon.mmesh.core;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zygon.mmesh.Identifier;
+import com.zygon.mmesh.message.ActivationFrame;
 import com.zygon.mmesh.message.Destination;
 import com.zygon.mmesh.message.Message;
+import com.zygon.mmesh.message.MessageQueue;
+import com.zygon.mmesh.message.MessageQueues;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  *
  * @author zygon
  */
 public class CellGroup {
+    
+    /**
+     * Who gets an ActivationMessage sent to the group.
+     */
+    public static enum Routing {
+        /** Every cell */
+        BROADCAST,
+        /** The target cell and the cells within the radius of it */
+        NEIGHBORHOOD,
+    }
 
     private static final class Watcher extends Thread {
 
@@ -49,14 +76,49 @@ public class CellGroup {
         }
     }
     
-    // 1D dimensional for now
+    // Takes the messages from other processes, in order, off the transport's
+    // thread - which reads every connection and so mustn't ever wait on the
+    // cells
+    private final class Inbox extends Thread {
+        
+        public Inbox() {
+            super("Inbox-" + groupId);
+            super.setDaemon(true);
+        }
+        
+        @Override
+        public void run() {
+            while (true) {
+                Message message;
+                
+                try {
+                    message = received.take();
+                } catch (InterruptedException ie) {
+                    return; // stopping
+                }
+                
+                handle(message);
+            }
+        }
+    }
+    
+    // 1D dimensional for now, radius cells on either side
+    private static int getNeighborhoodMin(int idx, int radius) {
+        return Math.max(idx - radius, 0);
+    }
+    
+    // Inclusive
+    private static int getNeighborhoodMax(int idx, Cell[] cells, int radius) {
+        return (int) Math.min((long) idx + radius, cells.length - 1);
+    }
+    
     private static Collection<Destination> getNeighbors(int idx, Cell[] cells, int radius) {
         Collection<Destination> neighbors = Lists.newArrayList();
         
-        int min = Math.max(idx - (radius / 2), 0);
-        int max = Math.min(idx + (radius / 2), cells.length);
+        int min = getNeighborhoodMin(idx, radius);
+        int max = getNeighborhoodMax(idx, cells, radius);
         
-        for (int i = min; i < max; i++) {
+        for (int i = min; i <= max; i++) {
             if (i != idx) {
                 neighbors.add(cells[i]);
             }
@@ -66,70 +128,262 @@ public class CellGroup {
     }
     
     // Testing out using all cells as neighbors - this means direct routing
-    // and really no residual activations
-    private static Collection<Destination> getAllOthers(int idx, Cell[] cells) {
-        Collection<Destination> neighbors = Lists.newArrayList();
+    // and really no residual activations.  One map shared by every cell, a 
+    // copy per cell would be N^2.
+    private static ImmutableMap<Identifier, MessageQueue> getAll(Cell[] cells) {
+        ImmutableMap.Builder<Identifier, MessageQueue> queuesById = ImmutableMap.builder();
         
-        for (int i = 0; i < cells.length; i++) {
-            if (i != idx) {
-                neighbors.add(cells[i]);
-            }
+        for (Cell cell : cells) {
+            queuesById.put(cell.getIdentifier(), cell.getQueue());
         }
         
-        return neighbors;
+        return queuesById.build();
     }
     
     private static final AbstractScheduledService.Scheduler CELL_SCHEDULER = 
             AbstractScheduledService.Scheduler.newFixedDelaySchedule(0, 500, TimeUnit.MILLISECONDS);
     
     private final Identifier groupId;
+    private final CellRuntime runtime;
     private final Map<Identifier,Cell> cellsById = Maps.newHashMap();
+    private final Cell[] cells;
+    private final Map<Identifier,Integer> indicesById = Maps.newHashMap();
+    private final int firstCell;
+    
+    // Cells in other processes, and one queue per process for forwarding 
+    // the group's activations there
+    private volatile ImmutableMap<Identifier, MessageQueue> remoteQueuesById = ImmutableMap.of();
+    private volatile List<MessageQueue> remoteQueues = ImmutableList.of();
+    private final AtomicLong undeliverableCount = new AtomicLong(0);
+    
+    // Messages from other processes waiting for the inbox's thread, and the
+    // step of the last activation it handed on
+    private final BlockingQueue<Message> received = Queues.newLinkedBlockingQueue();
+    private Inbox inbox = null;
+    private long receivedTimestamp = Long.MIN_VALUE;
+    
+    // 0 for the wall clock
+    private final long expirySteps;
+    private final AtomicLong step = new AtomicLong(0);
+    
+    private volatile Routing routing = Routing.BROADCAST;
+    private volatile int radius = 0;
+    
+    // The log of the cells' adds, if any, and what takes its checkpoints
+    private PredictionLog log = null;
+    private ScheduledExecutorService checkpoints = null;
     
     // For monitoring active cells
-    private final Set<Identifier> activeCellIds = Sets.newHashSet();
+    private final Set<Identifier> activeCellIds = Sets.newConcurrentHashSet();
     
+    /**
+     * A logical clock group: inputs are stamped with a step counter instead 
+     * of the time and activations expire after expirySteps steps, so a run 
+     * depends only on its input and can go as fast as the cells can.
+     * 
+     * The cells are numbered from firstCell, so that the processes of a 
+     * mesh can each host a different range of one group.
+     */
     // Consider an Identifer generator for different cell configurations
     // Also, maybe just plain old cell configuration properties like radius
-    public CellGroup(Identifier groupId, int cellCount) {
+    public CellGroup(Identifier groupId, int firstCell, int cellCount, CellRuntime runtime, Supplier<MessageQueue> queues, long expirySteps) {
         Preconditions.checkArgument(groupId != null);
+        Preconditions.checkArgument(firstCell >= 0);
         Preconditions.checkArgument(cellCount > 0);
+        Preconditions.checkArgument(runtime != null);
+        Preconditions.checkArgument(queues != null);
+        Preconditions.checkArgument(expirySteps >= 0);
         
         this.groupId = groupId;
+        this.runtime = runtime;
+        this.expirySteps = expirySteps;
+        this.firstCell = firstCell;
         
         Cell[] cells = new Cell[cellCount];
         
         // Create cells - just 1D for now
         for (int i = 0; i < cellCount; i++) {
-            cells[i] = new Cell(this, new Identifier(i), CELL_SCHEDULER);
+            ActivationTable activeTable = this.isLogical() ? 
+                    ActivationTable.expireAfterSteps(expirySteps) : ActivationTable.expireAfter(1, TimeUnit.SECONDS);
+            
+            cells[i] = new Cell(this, Identifier.of(firstCell + i), CELL_SCHEDULER, new PredictionTable(), activeTable, queues.get());
         }
         
         // Attach neighbors
+        ImmutableMap<Identifier, MessageQueue> all = getAll(cells);
         for (int i = 0; i < cellCount; i++) {
 //            Collection<Cell> neighbors = getNeighbors(i, cells, 4);
-            Collection<Destination> neighbors = getAllOthers(i, cells);
-            cells[i].setNeighbors(neighbors);
+            cells[i].setNeighbors(all);
         }
         
         // put into map
         for (int i = 0; i < cellCount; i++) {
             this.cellsById.put(cells[i].getIdentifier(), cells[i]);
+            this.indicesById.put(cells[i].getIdentifier(), i);
         }
+        
+        this.cells = cells;
+    }
+    
+    public CellGroup(Identifier groupId, int cellCount, CellRuntime runtime, Supplier<MessageQueue> queues, long expirySteps) {
+        this(groupId, 0, cellCount, runtime, queues, expirySteps);
+    }
+    
+    /**
+     * A wall clock group, activations expire after a second.
+     */
+    public CellGroup(Identifier groupId, int cellCount, CellRuntime runtime, Supplier<MessageQueue> queues) {
+        this(groupId, cellCount, runtime, queues, 0);
+    }
+    
+    public CellGroup(Identifier groupId, int cellCount, CellRuntime runtime) {
+        this(groupId, cellCount, runtime, MessageQueues.blocking());
+    }
+    
+    public CellGroup(Identifier groupId, int cellCount) {
+        this(groupId, cellCount, new PollingCellRuntime());
+    }
+    
+    /**
+     * Adds cells living in other processes, e.g. from a 
+     * {@link com.zygon.mmesh.transport.Transport}.  Every cell can then send
+     * its predictions to them, and the group's activations are forwarded to
+     * their processes as well.  Has to happen before {@link #doStart()}.
+     */
+    public void addRemoteDestinations(Collection<Destination> destinations) {
+        Preconditions.checkArgument(destinations != null);
+        
+        Map<Identifier, MessageQueue> remoteQueuesById = Maps.newLinkedHashMap(this.remoteQueuesById);
+        Set<MessageQueue> remoteQueues = Sets.newIdentityHashSet();
+        remoteQueues.addAll(this.remoteQueues);
+        
+        for (Destination dest : destinations) {
+            Preconditions.checkArgument(!this.cellsById.containsKey(dest.getIdentifier()), 
+                    "Local cell: %s", dest.getIdentifier());
+            
+            remoteQueuesById.put(dest.getIdentifier(), dest.getQueue());
+            remoteQueues.add(dest.getQueue());
+        }
+        
+        this.remoteQueuesById = ImmutableMap.copyOf(remoteQueuesById);
+        this.remoteQueues = ImmutableList.copyOf(remoteQueues);
+        
+        ImmutableMap<Identifier, MessageQueue> all = ImmutableMap.<Identifier, MessageQueue>builder()
+                .putAll(getAll(this.cells))
+                .putAll(this.remoteQueuesById)
+                .build();
+        
+        for (Cell cell : this.cells) {
+            cell.setNeighbors(all);
+        }
+    }
+    
+    // In cell order
+    private Map<Identifier, PredictionTable> getPredictionTables() {
+        Map<Identifier, PredictionTable> tables = Maps.newLinkedHashMap();
+        
+        for (Cell cell : this.cells) {
+            tables.put(cell.getIdentifier(), cell.getPredictionTable());
+        }
+        
+        return tables;
+    }
+    
+    /**
+     * Loads the cells' prediction tables from a {@link #snapshot(File)}. The 
+     * file is mapped and each table is decoded on its first use, so this is 
+     * quick however big the group.  Has to happen before {@link #doStart()},
+     * returns the number of cells restored.
+     */
+    public int restore(File file) throws IOException {
+        return PredictionTableSnapshot.restore(file, this.getPredictionTables());
+    }
+    
+    /**
+     * Saves every cell's prediction table to the file, replacing it.  Can 
+     * be taken while running, but each table is saved as of a different 
+     * moment - take it while idle for one consistent cut.
+     */
+    public void snapshot(File file) throws IOException {
+        PredictionTableSnapshot.write(this.getPredictionTables(), file);
+    }
+    
+    /**
+     * Checkpoints the log, see {@link PredictionLog#checkpoint()}.
+     */
+    public void checkpoint() throws IOException {
+        Preconditions.checkState(this.log != null, "No log");
+        
+        this.log.checkpoint();
+    }
+    
+    /**
+     * Recovers the cells' prediction tables from the log, its last 
+     * checkpoint plus the adds since, and logs every add from then on.  A 
+     * checkpoint is taken every period, or only on {@link #checkpoint()} 
+     * for a period of 0.  Has to happen before {@link #doStart()}, instead 
+     * of a {@link #restore(File)}.  Returns the number of adds replayed, the 
+     * log is closed on {@link #doStop()}.
+     */
+    public int openLog(PredictionLog log, long checkpointPeriod, TimeUnit unit) throws IOException {
+        Preconditions.checkArgument(log != null);
+        Preconditions.checkArgument(checkpointPeriod >= 0);
+        Preconditions.checkState(this.log == null, "Log already open");
+        
+        int replayed = log.open(this.getPredictionTables());
+        this.log = log;
+        
+        if (checkpointPeriod > 0) {
+            final PredictionLog checkpointed = log;
+            
+            this.checkpoints = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("checkpoint-%d").build());
+            this.checkpoints.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        checkpointed.checkpoint();
+                    } catch (IOException io) {
+                        // the log is still there, try again next time
+                        io.printStackTrace();
+                    }
+                }
+            }, checkpointPeriod, checkpointPeriod, unit);
+        }
+        
+        return replayed;
     }
     
     public void doStart() {
         // Start cells
-        for (Cell cell : this.cellsById.values()) {
-            cell.startAsync();
-        }
+        // In index order, which is what the sharded runtime splits on
+        this.runtime.start(Arrays.asList(this.cells));
         
         // Start simple watcher
         new Watcher(this.cellsById.values()).start();
+        
+        this.inbox = new Inbox();
+        this.inbox.start();
     }
     
     public void doStop() {
         // Stop cells
-        for (Cell cell : this.cellsById.values()) {
-            cell.stopAsync();
+        this.runtime.stop();
+        
+        if (this.inbox != null) {
+            this.inbox.interrupt();
+        }
+        
+        if (this.log != null) {
+            if (this.checkpoints != null) {
+                this.checkpoints.shutdownNow();
+            }
+            
+            try {
+                this.log.close();
+            } catch (IOException io) {
+                io.printStackTrace();
+            }
         }
     }
     
@@ -137,15 +391,108 @@ public class CellGroup {
         return this.activeCellIds.toArray(new Identifier[this.activeCellIds.size()]);
     }
     
+    /*pkg*/ Collection<Cell> getCells() {
+        return this.cellsById.values();
+    }
+    
+    /**
+     * The local cells, in order, e.g. for another process to connect to.
+     */
+    public List<Destination> getDestinations() {
+        return Collections.<Destination>unmodifiableList(Arrays.asList(this.cells));
+    }
+    
+    public int getFirstCell() {
+        return this.firstCell;
+    }
+    
+    /**
+     * True when the cells have nothing left to process, see 
+     * {@link CellRuntime#isIdle()}.
+     */
+    public boolean isIdle() {
+        return this.runtime.isIdle();
+    }
+    
     public int getCellCount() {
         return this.cellsById.size();
     }
     
+    public long getExpirySteps() {
+        return this.expirySteps;
+    }
+    
+    public Identifier getIdentifier() {
+        return this.groupId;
+    }
+    
+    /**
+     * The last step handed out by {@link #nextTimestamp()}, logical clock 
+     * only.
+     */
+    public long getStep() {
+        return this.step.get();
+    }
+    
+    public boolean isLogical() {
+        return this.expirySteps > 0;
+    }
+    
+    /**
+     * The timestamp for the next input step - the next step number with a 
+     * logical clock, otherwise the time.
+     */
+    public long nextTimestamp() {
+        return this.isLogical() ? this.step.incrementAndGet() : System.currentTimeMillis();
+    }
+    
+    public int getRadius() {
+        return this.radius;
+    }
+    
+    public Routing getRouting() {
+        return this.routing;
+    }
+    
+    /**
+     * Messages the cells' queues have dropped, see 
+     * {@link MessageQueue#getDroppedCount()}.
+     */
+    public long getDroppedMessageCount() {
+        long dropped = 0;
+        
+        for (Cell cell : this.cellsById.values()) {
+            dropped += cell.getQueue().getDroppedCount() + cell.getQueue().getCoalescedCount();
+        }
+        
+        return dropped;
+    }
+    
+    /**
+     * Received predictions for cells this group doesn't have.
+     */
+    public long getUndeliverableMessageCount() {
+        return this.undeliverableCount.get();
+    }
+    
+    /**
+     * Puts that had to wait on a full cell queue.
+     */
+    public long getBlockedMessageCount() {
+        long blocked = 0;
+        
+        for (Cell cell : this.cellsById.values()) {
+            blocked += cell.getQueue().getBlockedCount();
+        }
+        
+        return blocked;
+    }
+    
     /*pkg*/ void notifyActive(Identifier id) {
         Preconditions.checkArgument(this.cellsById.containsKey(id));
-        Preconditions.checkState(!this.activeCellIds.contains(id));
         
-        this.activeCellIds.add(id);
+        // Called from the cells' threads
+        Preconditions.checkState(this.activeCellIds.add(id));
     }
     
     public void reset() {
@@ -156,14 +503,129 @@ public class CellGroup {
         }
     }
     
+    // Cells in other processes aren't in the map, they're placed by their 
+    // coordinate so that neighborhoods carry on across the processes.  The 
+    // index can be out of this group's range then.
+    private int getIndex(Identifier id) {
+        Integer idx = this.indicesById.get(id);
+        
+        if (idx == null) {
+            Preconditions.checkArgument(this.remoteQueuesById.containsKey(id), "Not in this group: %s", id);
+            return id.getCoordinate(0) - this.firstCell;
+        }
+        
+        return idx;
+    }
+    
+    // Every cell within radius of any of the actives, once each
+    private void sendToNeighborhoods(ActivationFrame frame) {
+        int[] indices = new int[frame.getActives().size()];
+        int count = 0;
+        
+        for (Identifier id : frame.getActives()) {
+            indices[count++] = this.getIndex(id);
+        }
+        
+        Arrays.sort(indices);
+        
+        int radius = this.radius;
+        int next = 0; // first cell not sent to yet
+        
+        for (int idx : indices) {
+            int max = getNeighborhoodMax(idx, this.cells, radius);
+            
+            for (int i = Math.max(getNeighborhoodMin(idx, radius), next); i <= max; i++) {
+                this.cells[i].getQueue().put(frame);
+            }
+            
+            next = Math.max(next, max + 1);
+        }
+    }
+    
+    // To the local cells only
+    private void deliver(Message message) {
+        if (this.routing == Routing.NEIGHBORHOOD && message.getType() == Message.Type.ACTIVATION_FRAME) {
+            this.sendToNeighborhoods((ActivationFrame) message);
+        } else if (this.routing == Routing.NEIGHBORHOOD && message.getType() == Message.Type.ACTIVATION) {
+            int idx = this.getIndex(message.getDestination());
+            
+            int radius = this.radius;
+            int max = getNeighborhoodMax(idx, this.cells, radius);
+            
+            for (int i = getNeighborhoodMin(idx, radius); i <= max; i++) {
+                this.cells[i].getQueue().put(message);
+            }
+        } else {
+            // Send the message to ALL cells - cells have to manage their own 
+            // universe in relation to other cells.
+            for (Cell cell : this.cells) {
+                cell.getQueue().put(message);
+            }
+        }
+    }
+    
+    private void handle(Message message) {
+        if (message.getType() == Message.Type.PREDICTION) {
+            Cell cell = this.cellsById.get(message.getDestination());
+            
+            if (cell == null) {
+                this.undeliverableCount.incrementAndGet();
+            } else {
+                cell.getQueue().put(message);
+            }
+        } else {
+            if (message.getTimestamp() != this.receivedTimestamp) {
+                while (!this.isIdle()) {
+                    Thread.yield();
+                }
+                
+                this.receivedTimestamp = message.getTimestamp();
+                this.reset();
+            }
+            
+            this.deliver(message);
+        }
+    }
+    
+    /**
+     * Takes a message from another process of the mesh: a prediction goes 
+     * to its cell, activations are routed to the local cells the same as 
+     * {@link #send(Message)} but not forwarded again.  The first activation
+     * of a new step waits for the cells to finish the last one and resets 
+     * the group, as the sending SDR did for its own.
+     * 
+     * Never blocks, the messages are queued and handed to the cells in order
+     * on the group's own thread once started.
+     */
+    public void receive(Message message) {
+        Preconditions.checkArgument(message != null);
+        
+        this.received.add(message);
+    }
+    
     public void send(Message message) {
-        // Send the message to ALL cells - cells have to manage their own 
-        // universe in relation to other cells.
-        for (Cell cell : this.cellsById.values()) {
-            cell.getQueue().put(message);
+        this.deliver(message);
+        
+        for (MessageQueue remote : this.remoteQueues) {
+            remote.put(message);
         }
     }
     
+    /**
+     * With NEIGHBORHOOD routing an activation only reaches its target and 
+     * the cells within radius of it, so a step costs the SDR's sparsity 
+     * times the neighborhood rather than times the group size.  Cells then 
+     * only learn from activations in their neighborhood.  A frame goes to 
+     * the cells within radius of any of its actives.
+     */
+    public void setRouting(Routing routing, int radius) {
+        Preconditions.checkArgument(routing != null);
+        Preconditions.checkArgument(radius >= 0);
+        
+        this.radius = radius;
+        this.routing = routing;
+    }
+    
     public void send(Message ...messages) {
         for (Message msg : messages) {
             this.send(msg);
@@ -0,0 +1,22 @@
+
+package com.zygon.mmesh.core;
+
+import java.util.Collection;
+
+/**
+ * Decides how (and on which threads) the cells of a group process their 
+ * queued messages.
+ *
+ * @author zygon
+ */
+public interface CellRuntime {
+    
+    public void start(Collection<Cell> cells);
+    
+    public void stop();
+    
+    /**
+     * True when no cell has messages queued or being processed.
+     */
+    public boolean isIdle();
+}
@@ -0,0 +1,317 @@
+
+package com.zygon.mmesh.core;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zygon.mmesh.Identifier;
+import com.zygon.mmesh.message.Message;
+import com.zygon.mmesh.message.MessageQueue;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cells are only scheduled when there is something in their queue.  Once 
+ * scheduled a cell drains up to a batch of messages per run on a shared 
+ * executor, so latency is down to the work rather than a polling delay.
+ * 
+ * A cell never waits on a full queue while holding one of the executor's
+ * threads - cells waiting on each other's queues would never get them 
+ * back.  The runtime rewires the cells' routers so that a message for a 
+ * full queue is held over by the receiving cell's mailbox instead, and 
+ * taken in as the cell makes room.  Puts from outside (e.g. the SDR) 
+ * follow the queues' overflow policy as usual.
+ *
+ * @author zygon
+ */
+public class EventDrivenCellRuntime implements CellRuntime {
+    
+    public static enum Fairness {
+        /** After a batch the cell goes to the back of the line */
+        FAIR,
+        /** The cell keeps the thread until its queue is empty */
+        GREEDY,
+    }
+    
+    // Stands in for a cell's queue in the routers of the group's cells
+    private static final class RuntimeQueue extends MessageQueue {
+        
+        private final Mailbox mailbox;
+        
+        private RuntimeQueue(Mailbox mailbox) {
+            this.mailbox = mailbox;
+        }
+        
+        @Override
+        protected boolean offer(Message msg) {
+            this.mailbox.deliver(msg);
+            return true;
+        }
+        
+        @Override
+        protected boolean offer(Message msg, long timeoutNanos) {
+            return this.offer(msg);
+        }
+        
+        @Override
+        protected Message removeOldest() {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        protected Message dequeue() {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        protected Message take() {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public int getCapacity() {
+            return this.mailbox.cell.getQueue().getCapacity();
+        }
+        
+        @Override
+        public boolean hasMessage() {
+            return false;
+        }
+    }
+    
+    /*pkg*/ final class Mailbox implements Runnable, MessageQueue.Listener {
+        
+        private final Cell cell;
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        
+        // Messages from other cells that found the queue full, in the order
+        // they came.  Only the run holding the mailbox takes them out.
+        private final Queue<Message> overflow = Queues.newConcurrentLinkedQueue();
+        
+        private Mailbox(Cell cell) {
+            this.cell = cell;
+        }
+        
+        @Override
+        public void messageAvailable(MessageQueue queue) {
+            if (this.scheduled.get()) {
+                return;
+            }
+            
+            // counted before taking the flag, so whoever loses the race to 
+            // it can let go of their count right away
+            scheduledCount.incrementAndGet();
+            
+            if (this.scheduled.compareAndSet(false, true)) {
+                if (running) {
+                    try {
+                        schedule(this);
+                    } catch (RejectedExecutionException ree) {
+                        // shutting down
+                        this.unschedule();
+                    }
+                } else {
+                    this.unschedule();
+                }
+            } else {
+                scheduledCount.decrementAndGet();
+            }
+        }
+        
+        // From the other cells' runs.  Once something is held over the rest 
+        // queues up behind it, so the cell gets its messages in order.
+        private void deliver(Message message) {
+            if (this.overflow.isEmpty() && this.cell.getQueue().tryPut(message)) {
+                return;
+            }
+            
+            this.overflow.add(message);
+            this.messageAvailable(this.cell.getQueue());
+        }
+        
+        // Takes in what was held over, as far as there's room
+        private void refill() {
+            for (Message message = this.overflow.peek(); message != null; message = this.overflow.peek()) {
+                if (!this.cell.getQueue().tryPut(message)) {
+                    return;
+                }
+                
+                this.overflow.poll();
+            }
+        }
+        
+        private boolean hasMessage() {
+            return this.cell.getQueue().hasMessage() || !this.overflow.isEmpty();
+        }
+        
+        private void unschedule() {
+            this.scheduled.set(false);
+            scheduledCount.decrementAndGet();
+        }
+        
+        @Override
+        public void run() {
+            try {
+                if (fairness == Fairness.GREEDY) {
+                    do {
+                        this.refill();
+                    } while (running && this.cell.process(batchSize) > 0);
+                } else {
+                    this.refill();
+                    this.cell.process(batchSize);
+                    this.refill();
+                }
+            } finally {
+                this.reschedule();
+            }
+        }
+        
+        // Whatever is left, or arrived before the flag was cleared, gets
+        // another run.  The mailbox stays counted until it's known there's
+        // nothing more, so the runtime never looks idle with messages queued.
+        private void reschedule() {
+            this.scheduled.set(false);
+            
+            if (running && this.hasMessage() && this.scheduled.compareAndSet(false, true)) {
+                try {
+                    schedule(this);
+                    return;
+                } catch (RejectedExecutionException ree) {
+                    // shutting down
+                    this.scheduled.set(false);
+                }
+            }
+            
+            // if a put took the flag it's counted already.  Puts from cells
+            // are covered anyway, the sending cell is counted while it runs.
+            scheduledCount.decrementAndGet();
+        }
+    }
+    
+    private static ExecutorService createExecutor() {
+        return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), 
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("cell-runtime-%d").build());
+    }
+    
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final int batchSize;
+    private final Fairness fairness;
+    private final List<Mailbox> mailboxes = Lists.newArrayList();
+    private final AtomicInteger scheduledCount = new AtomicInteger(0);
+    
+    private volatile boolean running = false;
+    
+    /**
+     * The executor isn't shut down by stop().
+     */
+    public EventDrivenCellRuntime(ExecutorService executor, int batchSize, Fairness fairness) {
+        this(executor, false, batchSize, fairness);
+    }
+    
+    /**
+     * Uses a fixed pool with a thread per core.
+     */
+    public EventDrivenCellRuntime(int batchSize, Fairness fairness) {
+        this(createExecutor(), true, batchSize, fairness);
+    }
+    
+    public EventDrivenCellRuntime() {
+        this(64, Fairness.FAIR);
+    }
+    
+    /*pkg*/ EventDrivenCellRuntime(ExecutorService executor, boolean ownsExecutor, int batchSize, Fairness fairness) {
+        Preconditions.checkNotNull(executor);
+        Preconditions.checkArgument(batchSize > 0);
+        Preconditions.checkNotNull(fairness);
+        
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.batchSize = batchSize;
+        this.fairness = fairness;
+    }
+    
+    protected ExecutorService getExecutor() {
+        return this.executor;
+    }
+    
+    protected void schedule(Runnable mailbox) {
+        this.executor.execute(mailbox);
+    }
+    
+    /**
+     * Points the cells' routers at stand-ins for each other's queues, so 
+     * a run never waits on a full one.  Anything else they route to, i.e.
+     * cells in other processes, stays as it was.
+     */
+    /*pkg*/ void reroute(List<Mailbox> mailboxes) {
+        if (mailboxes.isEmpty()) {
+            return;
+        }
+        
+        Map<Identifier, MessageQueue> others = Maps.newHashMap(mailboxes.get(0).cell.getRouter().getDestinations());
+        ImmutableMap.Builder<Identifier, MessageQueue> queuesById = ImmutableMap.builder();
+        
+        for (Mailbox mailbox : mailboxes) {
+            others.remove(mailbox.cell.getIdentifier());
+            queuesById.put(mailbox.cell.getIdentifier(), new RuntimeQueue(mailbox));
+        }
+        
+        queuesById.putAll(others);
+        ImmutableMap<Identifier, MessageQueue> view = queuesById.build();
+        
+        for (Mailbox mailbox : mailboxes) {
+            mailbox.cell.setNeighbors(view);
+        }
+    }
+    
+    @Override
+    public void start(Collection<Cell> cells) {
+        Preconditions.checkState(!this.running && this.mailboxes.isEmpty());
+        
+        this.running = true;
+        
+        for (Cell cell : cells) {
+            Mailbox mailbox = new Mailbox(cell);
+            this.mailboxes.add(mailbox);
+            cell.getQueue().setListener(mailbox);
+        }
+        
+        this.reroute(this.mailboxes);
+        
+        // Anything sent before starting
+        for (Mailbox mailbox : this.mailboxes) {
+            if (mailbox.cell.getQueue().hasMessage()) {
+                mailbox.messageAvailable(mailbox.cell.getQueue());
+            }
+        }
+    }
+    
+    @Override
+    public boolean isIdle() {
+        return this.scheduledCount.get() == 0;
+    }
+    
+    @Override
+    public void stop() {
+        this.running = false;
+        
+        for (Mailbox mailbox : this.mailboxes) {
+            mailbox.cell.getQueue().setListener(null);
+        }
+        
+        if (this.ownsExecutor) {
+            this.executor.shutdown();
+        }
+    }
+}
@@ -1,30 +1,145 @@
 
 package com.zygon.mmesh.core;
 
-import com.google.common.collect.Sets;
+import com.google.common.base.Preconditions;
 import com.zygon.mmesh.Identifier;
+import com.zygon.mmesh.IdentifierRegistry;
 import java.util.AbstractSet;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
+ * An immutable set of Identifiers held as the sorted registry indices of its
+ * members.  SDRs are sparse, so the sorted array is the compact form, a
+ * bitmap over the indices is built on demand for overlap counting against
+ * other bitmaps.
  *
  * @author zygon
  */
-public class IdentifierSet extends AbstractSet implements Comparable<IdentifierSet> {
-
-    private final Set<Identifier> identifiers;
-    private int hash = -1;
-
+public class IdentifierSet extends AbstractSet<Identifier> implements Comparable<IdentifierSet> {
+    
+    public static final IdentifierSet EMPTY = new IdentifierSet(new int[0]);
+    
+    // 64bit so that different sets almost never get past the hash check in
+    // equals/compareTo.  Sets with the same hash are still compared in full.
+    private static long hash64(int[] keys) {
+        long h = 1125899906842597L;
+        
+        for (int key : keys) {
+            h = 31 * h + key;
+        }
+        
+        // murmur3 finalizer, spreads the bits for the 32bit hashCode
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        
+        return h;
+    }
+    
+    // Sorts and drops duplicates in place, returns the new length
+    private static int sortUnique(int[] keys, int length) {
+        Arrays.sort(keys, 0, length);
+        
+        int unique = 0;
+        for (int i = 0; i < length; i++) {
+            if (unique == 0 || keys[unique - 1] != keys[i]) {
+                keys[unique++] = keys[i];
+            }
+        }
+        
+        return unique;
+    }
+    
+    /**
+     * Builds a set from registry indices, which don't need to be sorted or
+     * unique. The array isn't kept.
+     */
+    public static IdentifierSet fromIndices(int[] indices, int length) {
+        Preconditions.checkArgument(indices != null);
+        Preconditions.checkPositionIndex(length, indices.length);
+        
+        int[] keys = Arrays.copyOf(indices, length);
+        int unique = sortUnique(keys, length);
+        
+        return new IdentifierSet(unique == length ? keys : Arrays.copyOf(keys, unique));
+    }
+    
+    // Already sorted and unique, copied
+    /*pkg*/ static IdentifierSet fromSortedIndices(int[] keys, int length) {
+        return length == 0 ? EMPTY : new IdentifierSet(Arrays.copyOf(keys, length));
+    }
+    
+    // Registry indices of the identifiers, sorted
+    private final int[] keys;
+    private final long hash64;
+    
+    // Built on demand, racy but idempotent.  Volatile so a reader never 
+    // sees the array before its bits are set.
+    private volatile long[] words = null;
+    
+    // Trusted - sorted, unique and not shared
+    private IdentifierSet(int[] keys) {
+        this.keys = keys;
+        this.hash64 = hash64(this.keys);
+    }
+    
     public IdentifierSet(Set<Identifier> identifiers) {
-        this.identifiers = Collections.unmodifiableSet(Sets.newTreeSet(identifiers));
+        int[] ids = new int[identifiers.size()];
+        
+        int i = 0;
+        for (Identifier id : identifiers) {
+            ids[i++] = id.getIndex();
+        }
+        
+        // it's a Set so there are no duplicates
+        Arrays.sort(ids);
+        
+        this.keys = ids;
+        this.hash64 = hash64(this.keys);
     }
-
+    
+    // Orders by hash first (cheap, and almost always decides), then by the
+    // identifiers themselves so that only equal sets compare as 0.
     @Override
     public int compareTo(IdentifierSet t) {
-        return this.hashCode() > t.hashCode() ? 1 : (this.hashCode() < t.hashCode() ? -1 : 0);
+        if (t == this) {
+            return 0;
+        }
+        
+        if (this.hash64 != t.hash64) {
+            return this.hash64 > t.hash64 ? 1 : -1;
+        }
+        
+        int len = Math.min(this.keys.length, t.keys.length);
+        
+        for (int i = 0; i < len; i++) {
+            if (this.keys[i] != t.keys[i]) {
+                return this.keys[i] > t.keys[i] ? 1 : -1;
+            }
+        }
+        
+        return this.keys.length - t.keys.length;
+    }
+    
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Identifier && this.containsIndex(((Identifier) o).getIndex());
+    }
+    
+    public boolean containsIndex(int index) {
+        long[] bits = this.words;
+        
+        if (bits != null) {
+            int word = index >>> 6;
+            return index >= 0 && word < bits.length && (bits[word] & (1L << index)) != 0;
+        }
+        
+        return Arrays.binarySearch(this.keys, index) >= 0;
     }
     
     @Override
@@ -37,29 +152,223 @@ public class IdentifierSet extends AbstractSet implements Comparable<IdentifierS
             return false;
         }
         
-        return this.hashCode() == o.hashCode();
+        IdentifierSet other = (IdentifierSet) o;
+        
+        return this.hash64 == other.hash64 && Arrays.equals(this.keys, other.keys);
     }
-
+    
     public Identifier[] getIdentifiers() {
-        return this.identifiers.toArray(new Identifier[this.identifiers.size()]);
+        IdentifierRegistry registry = IdentifierRegistry.getInstance();
+        Identifier[] ids = new Identifier[this.keys.length];
+        
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = registry.getByIndex(this.keys[i]);
+        }
+        
+        return ids;
+    }
+    
+    // Not a copy - don't modify
+    /*pkg*/ int[] getKeys() {
+        return this.keys;
+    }
+    
+    // Not a copy - don't modify
+    /*pkg*/ long[] getWords() {
+        long[] bits = this.words;
+        
+        if (bits == null) {
+            bits = new long[this.keys.length == 0 ? 0 : (this.keys[this.keys.length - 1] >>> 6) + 1];
+            
+            for (int key : this.keys) {
+                bits[key >>> 6] |= 1L << key;
+            }
+            
+            this.words = bits;
+        }
+        
+        return bits;
     }
     
     @Override
     public int hashCode() {
-        if (hash == -1) {
-            this.hash = Arrays.hashCode(this.identifiers.toArray(new Identifier[this.identifiers.size()]));
+        return (int) (this.hash64 ^ (this.hash64 >>> 32));
+    }
+    
+    /**
+     * The members of both sets.
+     */
+    public IdentifierSet intersection(IdentifierSet other) {
+        int[] common = new int[Math.min(this.keys.length, other.keys.length)];
+        int count = 0;
+        
+        int i = 0;
+        int j = 0;
+        
+        while (i < this.keys.length && j < other.keys.length) {
+            if (this.keys[i] == other.keys[j]) {
+                common[count++] = this.keys[i];
+                i++;
+                j++;
+            } else if (this.keys[i] < other.keys[j]) {
+                i++;
+            } else {
+                j++;
+            }
         }
         
-        return this.hash;
+        return new IdentifierSet(count == common.length ? common : Arrays.copyOf(common, count));
     }
-
+    
     @Override
-    public Iterator iterator() {
-        return this.identifiers.iterator();
+    public boolean isEmpty() {
+        return this.keys.length == 0;
     }
-
+    
+    @Override
+    public Iterator<Identifier> iterator() {
+        return new Iterator<Identifier>() {
+            
+            private int next = 0;
+            
+            @Override
+            public boolean hasNext() {
+                return this.next < keys.length;
+            }
+            
+            @Override
+            public Identifier next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return IdentifierRegistry.getInstance().getByIndex(keys[this.next++]);
+            }
+            
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+    
+    /**
+     * The number of shared members, i.e. the SDR overlap score. Uses the
+     * bitmaps when both sides have one built already, otherwise merges the
+     * sorted indices.
+     */
+    public int overlap(IdentifierSet other) {
+        if (other == this) {
+            return this.keys.length;
+        }
+        
+        long[] bits = this.words;
+        long[] otherBits = other.words;
+        
+        if (bits != null && otherBits != null) {
+            return overlap(bits, otherBits);
+        }
+        
+        if (bits != null || otherBits != null) {
+            // probe the smaller side's indices into the other's bitmap
+            IdentifierSet probe = bits != null ? other : this;
+            return probe.overlap(bits != null ? bits : otherBits);
+        }
+        
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        
+        while (i < this.keys.length && j < other.keys.length) {
+            if (this.keys[i] == other.keys[j]) {
+                count++;
+                i++;
+                j++;
+            } else if (this.keys[i] < other.keys[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        
+        return count;
+    }
+    
+    /**
+     * The number of members set in the given bitmap.
+     */
+    /*pkg*/ int overlap(long[] bitmap) {
+        int count = 0;
+        
+        for (int key : this.keys) {
+            int word = key >>> 6;
+            
+            if (word >= bitmap.length) {
+                break; // sorted, nothing further can be set
+            }
+            
+            if ((bitmap[word] & (1L << key)) != 0) {
+                count++;
+            }
+        }
+        
+        return count;
+    }
+    
+    /*pkg*/ static int overlap(long[] first, long[] second) {
+        int count = 0;
+        int len = Math.min(first.length, second.length);
+        
+        for (int i = 0; i < len; i++) {
+            count += Long.bitCount(first[i] & second[i]);
+        }
+        
+        return count;
+    }
+    
     @Override
     public int size() {
-        return this.identifiers.size();
+        return this.keys.length;
+    }
+    
+    /**
+     * The members of either set.
+     */
+    public IdentifierSet union(IdentifierSet other) {
+        int[] all = new int[this.keys.length + other.keys.length];
+        int count = 0;
+        
+        int i = 0;
+        int j = 0;
+        
+        while (i < this.keys.length || j < other.keys.length) {
+            if (j == other.keys.length || (i < this.keys.length && this.keys[i] < other.keys[j])) {
+                all[count++] = this.keys[i++];
+            } else if (i == this.keys.length || other.keys[j] < this.keys[i]) {
+                all[count++] = other.keys[j++];
+            } else {
+                all[count++] = this.keys[i];
+                i++;
+                j++;
+            }
+        }
+        
+        return new IdentifierSet(count == all.length ? all : Arrays.copyOf(all, count));
+    }
+    
+    /**
+     * This set without the given member.
+     */
+    public IdentifierSet without(Identifier id) {
+        int idx = Arrays.binarySearch(this.keys, id.getIndex());
+        
+        if (idx < 0) {
+            return this;
+        }
+        
+        int[] rest = new int[this.keys.length - 1];
+        System.arraycopy(this.keys, 0, rest, 0, idx);
+        System.arraycopy(this.keys, idx + 1, rest, idx, rest.length - idx);
+        
+        return new IdentifierSet(rest);
     }
 }
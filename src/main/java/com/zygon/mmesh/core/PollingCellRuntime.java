@@ -0,0 +1,49 @@
+
+package com.zygon.mmesh.core;
+
+import com.google.common.base.Preconditions;
+import java.util.Collection;
+
+/**
+ * The original runtime: every cell is its own scheduled service, taking one 
+ * message per run of the cell's schedule.
+ *
+ * @author zygon
+ */
+public class PollingCellRuntime implements CellRuntime {
+    
+    private Collection<Cell> cells = null;
+    
+    @Override
+    public void start(Collection<Cell> cells) {
+        Preconditions.checkState(this.cells == null);
+        
+        this.cells = cells;
+        
+        for (Cell cell : this.cells) {
+            cell.startAsync();
+        }
+    }
+    
+    // Best effort, a cell could be in the middle of a message
+    @Override
+    public boolean isIdle() {
+        if (this.cells != null) {
+            for (Cell cell : this.cells) {
+                if (cell.getQueue().hasMessage()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    
+    @Override
+    public void stop() {
+        if (this.cells != null) {
+            for (Cell cell : this.cells) {
+                cell.stopAsync();
+            }
+        }
+    }
+}
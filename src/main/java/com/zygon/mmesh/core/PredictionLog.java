@@ -0,0 +1,535 @@
+
+package com.zygon.mmesh.core;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.zygon.mmesh.Identifier;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead log of prediction table adds, for durability between
+ * snapshots.  Every add to a table of an open log is appended here, and
+ * recovery restores the last checkpoint then replays the adds logged since.
+ * Checkpoints are taken while learning goes on, and drop the log they cover.
+ *
+ * The log is a directory of fixed size segment files, each mapped and
+ * appended to in place.  An append only copies the record into the mapping,
+ * a flusher thread forces the segment for everything appended since its last
+ * force, so many adds share one sync (group commit).  With ASYNC durability
+ * that happens every flush interval and adds never wait, a crash loses at
+ * most the last interval.  With SYNC every add waits for its force.
+ *
+ * <pre>
+ *   record  int body length, int CRC32 of the body, then the body:
+ *             int cell, the entry as in a snapshot section
+ * </pre>
+ *
+ * A log position is segment number * segment size + offset, and a record's
+ * position is where it ends.  A record that doesn't fit in the rest of a
+ * segment starts the next one, a zero length ends a segment's records.  A
+ * bad length or CRC at the tail is a torn write, recovery stops there and
+ * it is written over.
+ *
+ * A checkpoint is a {@link PredictionTableSnapshot}, which keeps each table's
+ * log position so replay skips the adds a table already has.  Tables are
+ * saved one at a time, but everything appended before the checkpoint started
+ * is in it, so the segments before that point are deleted.
+ *
+ * Replay runs the adds again, so decay restarts from the checkpoint the same
+ * as for a snapshot restore.
+ *
+ * @author zygon
+ */
+public class PredictionLog implements Closeable {
+    
+    public static enum Durability {
+        /** Adds never wait, they are forced every flush interval */
+        ASYNC,
+        /** Adds wait until they are forced, with the others waiting then */
+        SYNC,
+    }
+    
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    public static final long DEFAULT_FLUSH_MILLIS = 10;
+    
+    private static final String CHECKPOINT_NAME = "checkpoint";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int RECORD_HEADER_SIZE = 8;
+    
+    // Records are built here, then copied into the segment under the lock
+    private static final ThreadLocal<ByteBuffer> RECORDS = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(256);
+        }
+    };
+    
+    private final class Flusher extends Thread {
+        
+        public Flusher() {
+            super("PredictionLog-Flusher-" + dir.getName());
+            super.setDaemon(true);
+        }
+        
+        @Override
+        public void run() {
+            PredictionLog log = PredictionLog.this;
+            
+            while (true) {
+                MappedByteBuffer current;
+                long target;
+                
+                synchronized (log) {
+                    try {
+                        // async waits out the interval, sync goes as soon
+                        // as there's something to force
+                        if (durability == Durability.ASYNC && log.open) {
+                            log.wait(flushMillis);
+                        }
+                        
+                        while (log.open && log.appended == log.durable) {
+                            log.wait(flushMillis);
+                        }
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    
+                    if (!log.open) {
+                        return;
+                    }
+                    
+                    current = log.segment;
+                    target = log.appended;
+                }
+                
+                // appends go on meanwhile, and wait for the next force
+                current.force();
+                
+                synchronized (log) {
+                    log.durable = Math.max(log.durable, target);
+                    log.forceCount++;
+                    log.notifyAll();
+                }
+            }
+        }
+    }
+    
+    private final File dir;
+    private final Durability durability;
+    private final int segmentSize;
+    private final long flushMillis;
+    
+    // Everything below is guarded by the log, checkpoints are taken one at
+    // a time under their own lock
+    private final Object checkpointLock = new Object();
+    private boolean open = false;
+    private Map<Identifier, PredictionTable> tables = null;
+    private Flusher flusher = null;
+    private MappedByteBuffer segment = null;
+    private long segmentNumber = 0;
+    private long appended = 0;
+    private long durable = 0;
+    private long appendCount = 0;
+    private long forceCount = 0;
+    private long checkpointCount = 0;
+    
+    public PredictionLog(File dir, Durability durability, int segmentSize, long flushMillis) {
+        Preconditions.checkArgument(dir != null);
+        Preconditions.checkArgument(durability != null);
+        Preconditions.checkArgument(segmentSize >= 4096, "Segment too small: %s", segmentSize);
+        Preconditions.checkArgument(flushMillis > 0);
+        
+        this.dir = dir;
+        this.durability = durability;
+        this.segmentSize = segmentSize;
+        this.flushMillis = flushMillis;
+    }
+    
+    public PredictionLog(File dir, Durability durability) {
+        this(dir, durability, DEFAULT_SEGMENT_SIZE, DEFAULT_FLUSH_MILLIS);
+    }
+    
+    public PredictionLog(File dir) {
+        this(dir, Durability.ASYNC);
+    }
+    
+    private static boolean isValid(ByteBuffer segment, int offset, int length, int crc) {
+        ByteBuffer body = segment.duplicate();
+        body.limit(offset + length);
+        body.position(offset);
+        
+        CRC32 check = new CRC32();
+        check.update(body);
+        
+        return (int) check.getValue() == crc;
+    }
+    
+    private File getCheckpointFile() {
+        return new File(this.dir, CHECKPOINT_NAME);
+    }
+    
+    private File getSegmentFile(long number) {
+        return new File(this.dir, String.format("%016x%s", number, SEGMENT_SUFFIX));
+    }
+    
+    // The segment files there are, in order
+    private List<Long> getSegmentNumbers() {
+        List<Long> numbers = Lists.newArrayList();
+        File[] files = this.dir.listFiles();
+        
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                
+                if (name.length() == 16 + SEGMENT_SUFFIX.length() && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        numbers.add(Long.parseLong(name.substring(0, 16), 16));
+                    } catch (NumberFormatException ignore) {
+                        // not one of ours
+                    }
+                }
+            }
+        }
+        
+        Collections.sort(numbers);
+        
+        return numbers;
+    }
+    
+    private MappedByteBuffer map(long number) throws IOException {
+        try (FileChannel channel = FileChannel.open(this.getSegmentFile(number).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // grows a new file to the full size, the mapping outlives the channel
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, this.segmentSize);
+        }
+    }
+    
+    // Replays the segment's records from its position, leaving the position
+    // after the last good one.  Only the last segment can end in a torn
+    // record, the rest of it is zeroed so that appends can go over it.
+    private int replay(ByteBuffer segment, long start, Map<Identifier, PredictionTable> tables, boolean last) throws IOException {
+        int replayed = 0;
+        
+        while (segment.remaining() >= RECORD_HEADER_SIZE) {
+            int offset = segment.position();
+            int length = segment.getInt(offset);
+            
+            if (length == 0) {
+                break;
+            }
+            
+            int body = offset + RECORD_HEADER_SIZE;
+            
+            if (length < 4 + 8 + 1 || length > segment.limit() - body
+                    || !isValid(segment, body, length, segment.getInt(offset + 4))) {
+                if (!last) {
+                    throw new IOException("Corrupt log record at " + (start + offset) + " in " + this.dir);
+                }
+                break;
+            }
+            
+            final long position = start + body + length;
+            final PredictionTable table = tables.get(Identifier.of(segment.getInt(body)));
+            
+            if (table != null && position > table.getLogPosition()) {
+                ByteBuffer entry = segment.duplicate();
+                entry.limit(body + length);
+                entry.position(body + 4);
+                
+                PredictionTableSnapshot.read(entry.slice(), new PredictionTable.EntryVisitor() {
+                    @Override
+                    public void visit(IdentifierSet idSet, double value) {
+                        table.replay(idSet, value, position);
+                    }
+                });
+                
+                replayed++;
+            }
+            
+            segment.position(body + length);
+        }
+        
+        if (last) {
+            // only touches what isn't zero already, so unwritten pages stay
+            // unallocated
+            int i = segment.position();
+            
+            for (; i + 8 <= segment.limit(); i += 8) {
+                if (segment.getLong(i) != 0) {
+                    segment.putLong(i, 0);
+                }
+            }
+            for (; i < segment.limit(); i++) {
+                segment.put(i, (byte) 0);
+            }
+        }
+        
+        return replayed;
+    }
+    
+    // Moves on to the next segment.  The current one is forced first, so a
+    // segment is only ever torn if it's the last.
+    private void roll() throws IOException {
+        this.segment.force();
+        this.durable = this.appended;
+        this.forceCount++;
+        this.notifyAll();
+        
+        this.segment = this.map(this.segmentNumber + 1);
+        this.segmentNumber++;
+    }
+    
+    /**
+     * Appends an add, returning its log position.  With SYNC durability
+     * this returns once the add is on disk.
+     */
+    /*pkg*/ long append(Identifier cell, IdentifierSet idSet, double value) {
+        Identifier[] ids = idSet.getIdentifiers();
+        int size = RECORD_HEADER_SIZE + 4 + PredictionTableSnapshot.getMaxEncodedSize(ids);
+        ByteBuffer record = RECORDS.get();
+        
+        if (record.capacity() < size) {
+            record = ByteBuffer.allocate(Math.max(size, record.capacity() * 2));
+            RECORDS.set(record);
+        }
+        
+        record.clear();
+        record.position(RECORD_HEADER_SIZE);
+        record.putInt(cell.getCoordinate(0));
+        PredictionTableSnapshot.encode(ids, value, record);
+        
+        int length = record.position() - RECORD_HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, length);
+        
+        record.putInt(0, length);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+        
+        Preconditions.checkArgument(record.remaining() <= this.segmentSize, "Set too big for the log: %s", idSet);
+        
+        synchronized (this) {
+            Preconditions.checkState(this.open, "Log is closed");
+            
+            if (this.segment.remaining() < record.remaining()) {
+                try {
+                    this.roll();
+                } catch (IOException io) {
+                    throw new UncheckedIOException(io);
+                }
+            }
+            
+            this.segment.put(record);
+            this.appendCount++;
+            
+            long position = this.segmentNumber * this.segmentSize + this.segment.position();
+            this.appended = position;
+            
+            if (this.durability == Durability.SYNC) {
+                this.notifyAll();
+                
+                while (this.open && this.durable < position) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            
+            return position;
+        }
+    }
+    
+    /**
+     * Writes a checkpoint of the tables and deletes the log segments it
+     * covers.  Learning isn't held up, each table is only locked while it's
+     * being saved.
+     */
+    public void checkpoint() throws IOException {
+        synchronized (this.checkpointLock) {
+            long start;
+            Map<Identifier, PredictionTable> checkpointed;
+            
+            synchronized (this) {
+                Preconditions.checkState(this.open, "Log is closed");
+                
+                start = this.appended;
+                checkpointed = this.tables;
+            }
+            
+            // an add is appended while its table is locked, so every record
+            // up to the start is in its table by the time the table is saved
+            PredictionTableSnapshot.write(checkpointed, this.getCheckpointFile());
+            
+            for (long number : this.getSegmentNumbers()) {
+                if ((number + 1) * this.segmentSize <= start) {
+                    File file = this.getSegmentFile(number);
+                    
+                    if (!file.delete()) {
+                        throw new IOException("Can't delete " + file);
+                    }
+                }
+            }
+            
+            synchronized (this) {
+                this.checkpointCount++;
+            }
+        }
+    }
+    
+    /**
+     * Stops logging, after forcing everything appended.  The tables go on
+     * without a log.
+     */
+    @Override
+    public void close() throws IOException {
+        Map<Identifier, PredictionTable> logged;
+        
+        synchronized (this) {
+            if (!this.open) {
+                return;
+            }
+            
+            logged = this.tables;
+        }
+        
+        // outside the lock, adds hold their table's lock while appending
+        for (PredictionTable table : logged.values()) {
+            table.setLog(null, null);
+        }
+        
+        synchronized (this) {
+            this.open = false;
+            this.notifyAll();
+        }
+        
+        try {
+            this.flusher.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        
+        synchronized (this) {
+            this.segment.force();
+            this.durable = this.appended;
+            this.forceCount++;
+        }
+    }
+    
+    public synchronized long getAppendCount() {
+        return this.appendCount;
+    }
+    
+    public synchronized long getCheckpointCount() {
+        return this.checkpointCount;
+    }
+    
+    public File getDirectory() {
+        return this.dir;
+    }
+    
+    public Durability getDurability() {
+        return this.durability;
+    }
+    
+    /**
+     * The number of syncs to disk, adds are batched so this is usually far
+     * below {@link #getAppendCount()}.
+     */
+    public synchronized long getForceCount() {
+        return this.forceCount;
+    }
+    
+    public int getSegmentSize() {
+        return this.segmentSize;
+    }
+    
+    /**
+     * Recovers the tables, keyed by their (1D) cell: restores the last
+     * checkpoint, if there is one, and replays the adds logged since.  The
+     * tables must be empty and not in use yet.  From then on every add to
+     * them is logged, until {@link #close()}.  Returns the number of adds
+     * replayed.
+     */
+    public int open(Map<Identifier, PredictionTable> tables) throws IOException {
+        Preconditions.checkArgument(tables != null);
+        
+        for (Identifier id : tables.keySet()) {
+            Preconditions.checkArgument(id.getDimensions() == 1, "Not a cell: %s", id);
+        }
+        
+        synchronized (this) {
+            Preconditions.checkState(this.tables == null, "Log already opened");
+            this.tables = ImmutableMap.copyOf(tables);
+        }
+        
+        if (!this.dir.isDirectory() && !this.dir.mkdirs()) {
+            throw new IOException("Can't create " + this.dir);
+        }
+        
+        File checkpoint = this.getCheckpointFile();
+        
+        if (checkpoint.exists()) {
+            PredictionTableSnapshot.restore(checkpoint, this.tables);
+        }
+        
+        List<Long> numbers = this.getSegmentNumbers();
+        MappedByteBuffer last = null;
+        long lastNumber = -1;
+        int replayed = 0;
+        
+        for (int i = 0; i < numbers.size(); i++) {
+            long number = numbers.get(i);
+            
+            if (i > 0 && number != lastNumber + 1) {
+                throw new IOException("Missing log segment " + (lastNumber + 1) + " in " + this.dir);
+            }
+            
+            last = this.map(number);
+            lastNumber = number;
+            replayed += this.replay(last, number * this.segmentSize, this.tables, i == numbers.size() - 1);
+        }
+        
+        // never append below a position the checkpoint already has
+        long floor = 0;
+        for (PredictionTable table : this.tables.values()) {
+            floor = Math.max(floor, table.getLogPosition());
+        }
+        
+        if (last == null || lastNumber * this.segmentSize + last.position() < floor) {
+            lastNumber = Math.max(lastNumber + 1, (floor + this.segmentSize - 1) / this.segmentSize);
+            last = this.map(lastNumber);
+        }
+        
+        synchronized (this) {
+            this.segment = last;
+            this.segmentNumber = lastNumber;
+            this.appended = lastNumber * this.segmentSize + last.position();
+            this.durable = this.appended;
+            this.open = true;
+        }
+        
+        for (Map.Entry<Identifier, PredictionTable> entry : this.tables.entrySet()) {
+            entry.getValue().setLog(this, entry.getKey());
+        }
+        
+        this.flusher = new Flusher();
+        this.flusher.start();
+        
+        return replayed;
+    }
+}
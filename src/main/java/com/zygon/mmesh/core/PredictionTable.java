@@ -1,17 +1,42 @@
 
 package com.zygon.mmesh.core;
 
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.zygon.mmesh.Identifier;
 import com.zygon.mmesh.message.PredictionMessage;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This holds potential predictions. These messages hold the presently active 
  * cells when the predictions came to be. We need to aggregate the messages
  * when multiple sets overlap in identifiers, and split when the messages can
  * make separate groups.
+ * 
+ * Learned sets are found either by exact match, or (in OVERLAP mode) by how
+ * many identifiers they share with the one asked about.
+ * 
+ * Tables are unbounded unless given a capacity, past it the worst entry by
+ * the EvictionPolicy is dropped for each new set.  Values can also decay,
+ * either every N learning steps or over time.
+ * 
+ * Learning (and overlap matching, which shares the learning scratch space)
+ * is serialized on the table.  Exact lookups, counts and the display are 
+ * lock free and never wait on learning.
+ * 
+ * A table restored from a {@link PredictionTableSnapshot} keeps its section 
+ * of the mapped file and only decodes it on first use.  Adds can also be 
+ * written to a {@link PredictionLog} as they happen, for recovering what 
+ * was learned since the last snapshot.
  *
  * @author zygon
  */
@@ -19,12 +44,86 @@ public class PredictionTable {
     
     public static final double NULL_VALUE = -1.0;
     
-    private static long fib(long i) {
-        if (i < 2) {
-            return i;
-        } else {
-            return fib(i - 1) + fib(i - 2);
+    public static enum MatchMode {
+        /** 
+         * Predictions need an exact match, unseen sets re-enforce the sets 
+         * with the longest common substring. 
+         */
+        EXACT,
+        /**
+         * Predictions come from the best overlapping set, unseen sets 
+         * re-enforce the sets they overlap with the most. Both only count
+         * sets at or above the minimum similarity.
+         */
+        OVERLAP,
+    }
+    
+    public static enum EvictionPolicy {
+        /** The entry with the lowest (decayed) value goes */
+        LOWEST_VALUE,
+        /** The entry re-enforced the fewest times goes */
+        LEAST_FREQUENTLY_REINFORCED,
+        /** The entry that has gone the longest without re-enforcement goes */
+        LEAST_RECENTLY_REINFORCED,
+    }
+    
+    /**
+     * A learned set along with how well it matched.
+     */
+    public static final class Match {
+        
+        private final IdentifierSet identifierSet;
+        private final int overlap;
+        private final double similarity;
+        private final double value;
+
+        private Match(IdentifierSet identifierSet, int overlap, double similarity, double value) {
+            this.identifierSet = identifierSet;
+            this.overlap = overlap;
+            this.similarity = similarity;
+            this.value = value;
+        }
+
+        public IdentifierSet getIdentifierSet() {
+            return this.identifierSet;
+        }
+
+        public int getOverlap() {
+            return this.overlap;
+        }
+
+        public double getSimilarity() {
+            return this.similarity;
+        }
+
+        public double getValue() {
+            return this.value;
+        }
+
+        @Override
+        public String toString() {
+            return this.identifierSet + " ~" + this.similarity + " - " + this.value;
+        }
+    }
+    
+    // Best first: most overlap, then highest value
+    private static final Comparator<Match> BEST_MATCH_FIRST = new Comparator<Match>() {
+        @Override
+        public int compare(Match o1, Match o2) {
+            if (o1.overlap != o2.overlap) {
+                return o2.overlap - o1.overlap;
+            }
+            return Double.compare(o2.value, o1.value);
         }
+    };
+    
+    /**
+     * The overlap relative to the larger of the two sets, so only equal
+     * sets are 1.0.
+     */
+    public static double getSimilarity(int overlap, int firstSize, int secondSize) {
+        int max = Math.max(firstSize, secondSize);
+        return max == 0 ? 0.0 : (double) overlap / max;
     }
     
     public static int longestSubstr(Identifier[] first, Identifier[] second) {
@@ -62,52 +161,602 @@ public class PredictionTable {
         return maxLen;
     }
     
-    // use concurrent map?
-    private final TreeMap<IdentifierSet,Double> predictionValuesByIdSet = Maps.newTreeMap();
+    // Two rolling rows per thread, grown as needed
+    private static final ThreadLocal<int[][]> SUBSTR_ROWS = new ThreadLocal<int[][]>() {
+        @Override
+        protected int[][] initialValue() {
+            return new int[2][32];
+        }
+    };
+    
+    /**
+     * Same as {@link #longestSubstr(Identifier[], Identifier[])} but over 
+     * primitive identifier keys.  Only two rows of the table are kept and
+     * they are reused between calls, so nothing is allocated per comparison.
+     */
+    public static int longestSubstr(int[] first, int[] second) {
+        
+        if (first == null || second == null || first.length == 0 || second.length == 0) {
+            return 0;
+        }
+        
+        int sl = second.length;
+        int[][] rows = SUBSTR_ROWS.get();
+        
+        if (rows[0].length < sl + 1) {
+            int size = Math.max(sl + 1, rows[0].length * 2);
+            rows[0] = new int[size];
+            rows[1] = new int[size];
+        }
+        
+        int[] prev = rows[0];
+        int[] curr = rows[1];
+        Arrays.fill(prev, 0, sl + 1, 0);
+        curr[0] = 0;
+        
+        int maxLen = 0;
+        
+        for (int i = 0; i < first.length; i++) {
+            int f = first[i];
+            
+            for (int j = 1; j <= sl; j++) {
+                if (f == second[j - 1]) {
+                    int len = prev[j - 1] + 1;
+                    curr[j] = len;
+                    
+                    if (len > maxLen) {
+                        maxLen = len;
+                    }
+                } else {
+                    curr[j] = 0;
+                }
+            }
+            
+            int[] swap = prev;
+            prev = curr;
+            curr = swap;
+        }
+        
+        return maxLen;
+    }
+    
+    /*pkg*/ static interface EntryVisitor {
+        public void visit(IdentifierSet idSet, double value);
+    }
+    
+    private static final class Entry {
+        
+        private final IdentifierSet idSet;
+        private final int slot;
+        
+        // Relative to the table's scale, see valueOf(). Only written while
+        // holding the table lock.
+        private volatile double value;
+        
+        private long reinforcements = 0;
+        private long lastReinforced;
+        private int heapIndex = -1;
+
+        public Entry(IdentifierSet idSet, int slot, double value, long step) {
+            this.idSet = idSet;
+            this.slot = slot;
+            this.value = value;
+            this.lastReinforced = step;
+        }
+    }
+    
+    // A growable list of entry slots
+    private static final class Postings {
+        
+        private int[] slots = new int[4];
+        private int size = 0;
+        
+        private void add(int slot) {
+            if (this.size == this.slots.length) {
+                this.slots = Arrays.copyOf(this.slots, this.size * 2);
+            }
+            this.slots[this.size++] = slot;
+        }
+        
+        private void remove(int slot) {
+            for (int i = 0; i < this.size; i++) {
+                if (this.slots[i] == slot) {
+                    this.slots[i] = this.slots[--this.size];
+                    return;
+                }
+            }
+        }
+    }
+    
+    // Rescale everything before the scale underflows
+    private static final double MIN_SCALE = 1e-200;
+    
+    private final RewardFunction rewardFunction;
+    private final MatchMode matchMode;
+    private final double minSimilarity;
+    
+    // Readers go straight here, everything else below is writer only
+    private final ConcurrentMap<IdentifierSet,Entry> entriesByIdSet = Maps.newConcurrentMap();
+    private volatile int size = 0;
+    private Entry[] entriesBySlot = new Entry[16];
+    private int[] freeSlots = new int[16];
+    private int freeSlotCount = 0;
+    private int nextSlot = 0;
+    
+    // Inverted index of the learned sets: Identifier -> the slot of every 
+    // set holding it. Sets sharing no identifiers have no overlap (and no 
+    // common substring) so only the sets found through here are compared.
+    private final Map<Identifier,Postings> slotsByIdentifier = Maps.newHashMap();
+    
+    // Scratch space for counting overlaps, always left zeroed
+    private int[] overlapBySlot = new int[16];
+    private int[] touchedSlots = new int[16];
+    
+    // Learning steps, one per add()
+    private long step = 0;
+    
+    // Bounding: the entries are kept in a min-heap by eviction priority, 
+    // only when there is a capacity.
+    private int capacity = Integer.MAX_VALUE;
+    private EvictionPolicy evictionPolicy = null;
+    private Entry[] heap = null;
+    private int heapSize = 0;
+    private volatile long evictionCount = 0;
+    
+    // Decay: every value is multiplied by the scale, so decaying the whole 
+    // table is a single multiplication.  Folding the scale back into the 
+    // values is guarded by a sequence number so readers can retry.
+    private volatile double scale = 1.0;
+    private volatile long rescaleSequence = 0;
+    private double decayFactor = 1.0;
+    private long decaySteps = 0;
+    private long decayNanos = 0;
+    private Ticker ticker = null;
+    private long lastDecayNanos = 0;
+    private volatile long decayCount = 0;
+    
+    // A snapshot section not decoded yet, see restore()
+    private volatile ByteBuffer pending = null;
+    private int pendingCount = 0;
+    
+    // Where adds are logged, if anywhere, and the log position of the last 
+    // one (or of the last restored or replayed one)
+    private PredictionLog log = null;
+    private Identifier logId = null;
+    private long logPosition = 0;
+    
+    public PredictionTable(RewardFunction rewardFunction, MatchMode matchMode, double minSimilarity) {
+        Preconditions.checkNotNull(rewardFunction);
+        Preconditions.checkNotNull(matchMode);
+        Preconditions.checkArgument(minSimilarity > 0.0 && minSimilarity <= 1.0);
+        
+        this.rewardFunction = rewardFunction;
+        this.matchMode = matchMode;
+        this.minSimilarity = minSimilarity;
+    }
+    
+    public PredictionTable(RewardFunction rewardFunction) {
+        this(rewardFunction, MatchMode.EXACT, 1.0);
+    }
+    
+    public PredictionTable() {
+        this(RewardFunctions.FIBONACCI);
+    }
+    
+    private void materialize() {
+        if (this.pending == null) {
+            return;
+        }
+        
+        synchronized (this) {
+            ByteBuffer section = this.pending;
+            
+            if (section != null) {
+                PredictionTableSnapshot.read(section.duplicate(), new EntryVisitor() {
+                    @Override
+                    public void visit(IdentifierSet idSet, double value) {
+                        set(idSet, value);
+                    }
+                });
+                
+                // lock free readers wait on the lock until now
+                this.pending = null;
+            }
+        }
+    }
+    
+    private double valueOf(Entry entry) {
+        while (true) {
+            long sequence = this.rescaleSequence;
+            
+            if ((sequence & 1) == 0) {
+                double value = entry.value * this.scale;
+                
+                if (sequence == this.rescaleSequence) {
+                    return value;
+                }
+            }
+            
+            Thread.yield();
+        }
+    }
+    
+    // Smaller is evicted first
+    private double getPriority(Entry entry) {
+        switch (this.evictionPolicy) {
+            case LOWEST_VALUE:
+                return entry.value;
+            case LEAST_FREQUENTLY_REINFORCED:
+                return entry.reinforcements;
+            case LEAST_RECENTLY_REINFORCED:
+                return entry.lastReinforced;
+            default:
+                throw new IllegalStateException(this.evictionPolicy.name());
+        }
+    }
+    
+    private void heapSet(int index, Entry entry) {
+        this.heap[index] = entry;
+        entry.heapIndex = index;
+    }
+    
+    private void siftUp(int index) {
+        Entry entry = this.heap[index];
+        double priority = this.getPriority(entry);
+        
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            
+            if (this.getPriority(this.heap[parent]) <= priority) {
+                break;
+            }
+            
+            this.heapSet(index, this.heap[parent]);
+            index = parent;
+        }
+        
+        this.heapSet(index, entry);
+    }
+    
+    private void siftDown(int index) {
+        Entry entry = this.heap[index];
+        double priority = this.getPriority(entry);
+        
+        while (true) {
+            int child = (index << 1) + 1;
+            
+            if (child >= this.heapSize) {
+                break;
+            }
+            
+            if (child + 1 < this.heapSize && this.getPriority(this.heap[child + 1]) < this.getPriority(this.heap[child])) {
+                child++;
+            }
+            
+            if (priority <= this.getPriority(this.heap[child])) {
+                break;
+            }
+            
+            this.heapSet(index, this.heap[child]);
+            index = child;
+        }
+        
+        this.heapSet(index, entry);
+    }
+    
+    private void heapAdd(Entry entry) {
+        if (this.heapSize == this.heap.length) {
+            this.heap = Arrays.copyOf(this.heap, this.heapSize * 2);
+        }
+        
+        this.heapSet(this.heapSize++, entry);
+        this.siftUp(this.heapSize - 1);
+    }
+    
+    private Entry heapPoll() {
+        Entry head = this.heap[0];
+        Entry last = this.heap[--this.heapSize];
+        this.heap[this.heapSize] = null;
+        
+        if (this.heapSize > 0) {
+            this.heapSet(0, last);
+            this.siftDown(0);
+        }
+        
+        head.heapIndex = -1;
+        return head;
+    }
+    
+    private void reinforce(Entry entry, double incomingValue) {
+        entry.value += incomingValue / this.scale;
+        entry.reinforcements++;
+        entry.lastReinforced = this.step;
+        
+        // a negative value lowers the priority, so either way
+        if (this.heap != null) {
+            this.siftUp(entry.heapIndex);
+            this.siftDown(entry.heapIndex);
+        }
+    }
+    
+    private void decay() {
+        long periods = 0;
+        
+        if (this.decaySteps > 0) {
+            periods = this.step % this.decaySteps == 0 ? 1 : 0;
+        } else if (this.ticker != null) {
+            long elapsed = this.ticker.read() - this.lastDecayNanos;
+            periods = elapsed / this.decayNanos;
+            this.lastDecayNanos += periods * this.decayNanos;
+        }
+        
+        if (periods > 0) {
+            this.scale *= Math.pow(this.decayFactor, periods);
+            this.decayCount += periods;
+            
+            if (this.scale < MIN_SCALE) {
+                this.rescaleSequence++;
+                
+                for (Entry entry : this.entriesByIdSet.values()) {
+                    entry.value *= this.scale;
+                }
+                this.scale = 1.0;
+                
+                this.rescaleSequence++;
+            }
+        }
+    }
+    
+    private void rebuildHeap() {
+        this.heap = new Entry[Math.max(16, this.size)];
+        this.heapSize = 0;
+        
+        for (Entry entry : this.entriesByIdSet.values()) {
+            this.heapAdd(entry);
+        }
+    }
+    
+    private void evict(Entry entry) {
+        this.entriesByIdSet.remove(entry.idSet);
+        this.size--;
+        this.entriesBySlot[entry.slot] = null;
+        
+        for (Identifier id : entry.idSet) {
+            Postings postings = this.slotsByIdentifier.get(id);
+            postings.remove(entry.slot);
+            
+            if (postings.size == 0) {
+                this.slotsByIdentifier.remove(id);
+            }
+        }
+        
+        this.freeSlots[this.freeSlotCount++] = entry.slot;
+        this.evictionCount++;
+    }
+    
+    private Entry insert(IdentifierSet idSet, double value) {
+        
+        while (this.size >= this.capacity) {
+            this.evict(this.heapPoll());
+        }
+        
+        int slot;
+        
+        if (this.freeSlotCount > 0) {
+            slot = this.freeSlots[--this.freeSlotCount];
+        } else {
+            slot = this.nextSlot++;
+            
+            if (slot == this.entriesBySlot.length) {
+                this.entriesBySlot = Arrays.copyOf(this.entriesBySlot, slot * 2);
+                this.freeSlots = Arrays.copyOf(this.freeSlots, slot * 2);
+                this.overlapBySlot = Arrays.copyOf(this.overlapBySlot, slot * 2);
+                this.touchedSlots = Arrays.copyOf(this.touchedSlots, slot * 2);
+            }
+        }
+        
+        Entry entry = new Entry(idSet, slot, value / this.scale, this.step);
+        this.entriesBySlot[slot] = entry;
+        
+        for (Identifier id : idSet) {
+            Postings postings = this.slotsByIdentifier.get(id);
+            
+            if (postings == null) {
+                postings = new Postings();
+                this.slotsByIdentifier.put(id, postings);
+            }
+            
+            postings.add(slot);
+        }
+        
+        if (this.heap != null) {
+            this.heapAdd(entry);
+        }
+        
+        // publish last, once the entry is fully indexed
+        this.entriesByIdSet.put(idSet, entry);
+        this.size++;
+        
+        return entry;
+    }
+    
+    /**
+     * Counts the overlap of every learned set sharing an identifier with the
+     * target into overlapBySlot.  Returns how many slots were touched, they 
+     * are listed in touchedSlots. Callers must clearOverlaps() afterwards.
+     */
+    private int countOverlaps(IdentifierSet target) {
+        int touched = 0;
+        
+        for (Identifier id : target) {
+            Postings postings = this.slotsByIdentifier.get(id);
+            
+            if (postings != null) {
+                for (int i = 0; i < postings.size; i++) {
+                    int slot = postings.slots[i];
+                    
+                    if (this.overlapBySlot[slot]++ == 0) {
+                        this.touchedSlots[touched++] = slot;
+                    }
+                }
+            }
+        }
+        
+        return touched;
+    }
+    
+    private void clearOverlaps(int touched) {
+        for (int i = 0; i < touched; i++) {
+            this.overlapBySlot[this.touchedSlots[i]] = 0;
+        }
+    }
+    
+    // The touched slots, most overlap first (a counting sort, overlaps are 
+    // bounded by the target size)
+    private int[] sortByOverlap(int touched, int maxOverlap) {
+        int[] starts = new int[maxOverlap + 2];
+        
+        for (int i = 0; i < touched; i++) {
+            starts[maxOverlap - this.overlapBySlot[this.touchedSlots[i]] + 1]++;
+        }
+        for (int i = 1; i < starts.length; i++) {
+            starts[i] += starts[i - 1];
+        }
+        
+        int[] sorted = new int[touched];
+        for (int i = 0; i < touched; i++) {
+            int slot = this.touchedSlots[i];
+            sorted[starts[maxOverlap - this.overlapBySlot[slot]]++] = slot;
+        }
+        
+        return sorted;
+    }
+    
+    /**
+     * Returns the learned sets sharing the longest common substring with the
+     * target, the length is returned in the first element.  Sets without any
+     * common identifier are never returned.
+     */
+    private List<Entry> getLongestMatchingSubstrings(IdentifierSet target, int[] longestLength) {
+        
+        int touched = this.countOverlaps(target);
+        int[] candidates = this.sortByOverlap(touched, target.size());
+        
+        List<Entry> longestMatchingSubstrings = Lists.newArrayList();
+        int[] keys = target.getKeys();
+        int longest = 0;
+        
+        for (int slot : candidates) {
+            if (this.overlapBySlot[slot] < longest) {
+                // Nothing left can reach the current best - a common 
+                // substring is never longer than the overlap
+                break;
+            }
+            
+            Entry candidate = this.entriesBySlot[slot];
+            int subStringLength = longestSubstr(candidate.idSet.getKeys(), keys);
+            
+            if (subStringLength > longest) {
+                longest = subStringLength;
+                longestMatchingSubstrings.clear();
+                longestMatchingSubstrings.add(candidate);
+            } else if (subStringLength == longest) {
+                longestMatchingSubstrings.add(candidate);
+            }
+        }
+        
+        this.clearOverlaps(touched);
+        
+        longestLength[0] = longest;
+        return longestMatchingSubstrings;
+    }
+    
+    private List<Match> getMatches(IdentifierSet target, int max) {
+        
+        int touched = this.countOverlaps(target);
+        List<Match> matches = Lists.newArrayList();
+        
+        // The similarity can't be more than overlap/target size, so most sets
+        // are ruled out without looking at them.  Less a little, so a product
+        // like 0.55 * 100 = 55.00000000000001 doesn't rule out an overlap of
+        // 55 - the similarity check below has the last word.
+        int minOverlap = (int) Math.ceil(this.minSimilarity * target.size() - 1e-9);
+        
+        for (int i = 0; i < touched; i++) {
+            int slot = this.touchedSlots[i];
+            int overlap = this.overlapBySlot[slot];
+            
+            if (overlap < minOverlap) {
+                continue;
+            }
+            
+            Entry entry = this.entriesBySlot[slot];
+            double similarity = getSimilarity(overlap, target.size(), entry.idSet.size());
+            
+            if (similarity >= this.minSimilarity) {
+                matches.add(new Match(entry.idSet, overlap, similarity, this.valueOf(entry)));
+            }
+        }
+        
+        this.clearOverlaps(touched);
+        
+        Collections.sort(matches, BEST_MATCH_FIRST);
+        
+        return matches.size() > max ? Lists.newArrayList(matches.subList(0, max)) : matches;
+    }
     
     public synchronized void add (IdentifierSet idSet, double value) {
+        this.materialize();
+        
+        if (this.log != null) {
+            this.logPosition = this.log.append(this.logId, idSet, value);
+        }
         
-        Double exactMatchValue = this.predictionValuesByIdSet.get(idSet);
+        this.step++;
+        this.decay();
         
-        if (exactMatchValue != null) {
+        Entry exactMatch = this.entriesByIdSet.get(idSet);
+        
+        if (exactMatch != null) {
             // exact match! This is good as it exactly re-enforces another 
             // prediction of ours.
             
-            double incomingValue = fib(idSet.size()) * value;
+            double incomingValue = this.rewardFunction.getReward(idSet.size()) * value;
             
-            this.predictionValuesByIdSet.put(idSet, exactMatchValue + incomingValue);
+            this.reinforce(exactMatch, incomingValue);
         } else {
-            // We didn't find an exact copy - try and find the longest substrings
-            Identifier[] ids = idSet.getIdentifiers();
-            Map<IdentifierSet,Integer> longestMatchingSubstrings = Maps.newHashMap();
-            
-            int longest = 0;
-            
-            for (IdentifierSet key : this.predictionValuesByIdSet.keySet()) {
-                int subStringLength = longestSubstr(key.getIdentifiers(), ids);
-                if (subStringLength > longest) {
-                    longestMatchingSubstrings.clear();
-                    longestMatchingSubstrings.put(key, subStringLength);
-                } else if (subStringLength == longest) {
-                    longestMatchingSubstrings.put(key, subStringLength);
-                }
-            }
             
-            if (!longestMatchingSubstrings.isEmpty()) {
-                // the list of IdentifierSets are the best matches, they should 
-                // be rewarded.
-                for (Map.Entry<IdentifierSet,Integer> rewardEntry : longestMatchingSubstrings.entrySet()) {
-                    double originalFullValue = this.predictionValuesByIdSet.get(rewardEntry.getKey());
-                    int substringSize = rewardEntry.getValue();
-                    double incomingValue = fib(substringSize) * value;
+            switch (this.matchMode) {
+                case EXACT:
+                    // We didn't find an exact copy - try and find the longest substrings
+                    int[] longest = new int[1];
+                    List<Entry> longestMatchingSubstrings = this.getLongestMatchingSubstrings(idSet, longest);
 
-                    this.predictionValuesByIdSet.put(rewardEntry.getKey(), originalFullValue + incomingValue);
-                }
+                    // the list of IdentifierSets are the best matches, they should 
+                    // be rewarded.
+                    for (Entry rewardEntry : longestMatchingSubstrings) {
+                        this.reinforce(rewardEntry, this.rewardFunction.getReward(longest[0]) * value);
+                    }
+                    break;
+                    
+                case OVERLAP:
+                    // Reward the closest sets by how much they overlap, these 
+                    // come back best first so stop at the first lesser one
+                    List<Match> matches = this.getMatches(idSet, Integer.MAX_VALUE);
+                    
+                    for (Match match : matches) {
+                        if (match.overlap < matches.get(0).overlap) {
+                            break;
+                        }
+                        this.reinforce(this.entriesByIdSet.get(match.identifierSet), 
+                                this.rewardFunction.getReward(match.overlap) * value);
+                    }
+                    break;
             }
             
             // Add the new prediction set - it hasn't been seen before.
-            double incomingValue = fib(idSet.size()) * value;
-            this.predictionValuesByIdSet.put(idSet, incomingValue);
+            double incomingValue = this.rewardFunction.getReward(idSet.size()) * value;
+            this.insert(idSet, incomingValue);
         }
     }
     
@@ -116,38 +765,241 @@ public class PredictionTable {
         this.add(idSet, msg.getValue());
     }
     
+    /**
+     * Visits every learned set with its value, in no particular order.
+     */
+    /*pkg*/ synchronized void forEachEntry(EntryVisitor visitor) {
+        this.materialize();
+        
+        for (Entry entry : this.entriesByIdSet.values()) {
+            visitor.visit(entry.idSet, this.valueOf(entry));
+        }
+    }
+    
+    /**
+     * The restored snapshot section, until the table is first used.  Not a
+     * copy - don't modify.
+     */
+    /*pkg*/ ByteBuffer getSnapshotSection() {
+        return this.pending;
+    }
+    
+    /*pkg*/ synchronized long getLogPosition() {
+        return this.logPosition;
+    }
+    
+    /**
+     * Sets the value of a set directly, no learning happens.  Meant for 
+     * loading tables.
+     */
+    /*pkg*/ synchronized void put(IdentifierSet idSet, double value) {
+        this.materialize();
+        this.set(idSet, value);
+    }
+    
+    /**
+     * Replays a logged add, one the table doesn't have yet.  Nothing is
+     * logged while replaying.
+     */
+    /*pkg*/ synchronized void replay(IdentifierSet idSet, double value, long logPosition) {
+        Preconditions.checkState(this.log == null, "Replaying into a logged table");
+        Preconditions.checkArgument(logPosition > this.logPosition);
+        
+        this.add(idSet, value);
+        this.logPosition = logPosition;
+    }
+    
+    /**
+     * Takes its sets from the snapshot section when first used, the 
+     * section must stay as is until then.  The table has to be empty.
+     */
+    /*pkg*/ synchronized void restore(ByteBuffer section, int count, long logPosition) {
+        Preconditions.checkArgument(section != null);
+        Preconditions.checkArgument(count >= 0);
+        Preconditions.checkState(this.size == 0 && this.pending == null, "Not an empty table");
+        
+        this.pendingCount = count;
+        this.pending = section;
+        this.logPosition = logPosition;
+    }
+    
+    private void set(IdentifierSet idSet, double value) {
+        Entry entry = this.entriesByIdSet.get(idSet);
+        
+        if (entry != null) {
+            entry.value = value / this.scale;
+            
+            if (this.heap != null) {
+                this.siftUp(entry.heapIndex);
+                this.siftDown(entry.heapIndex);
+            }
+        } else {
+            this.insert(idSet, value);
+        }
+    }
+    
+    /**
+     * Logs every add from now on under the id, or stops logging with a null 
+     * log.
+     */
+    /*pkg*/ synchronized void setLog(PredictionLog log, Identifier id) {
+        Preconditions.checkArgument(log == null || id != null);
+        
+        this.log = log;
+        this.logId = id;
+    }
+    
+    /**
+     * Bounds the table, evicting by the given policy from now on.  If the 
+     * table is already over capacity it is trimmed right away.
+     */
+    public synchronized void setCapacity(int capacity, EvictionPolicy evictionPolicy) {
+        Preconditions.checkArgument(capacity > 0);
+        Preconditions.checkNotNull(evictionPolicy);
+        
+        this.materialize();
+        
+        this.capacity = capacity;
+        this.evictionPolicy = evictionPolicy;
+        this.rebuildHeap();
+        
+        while (this.size > this.capacity) {
+            this.evict(this.heapPoll());
+        }
+    }
+    
+    /**
+     * Multiplies every value by the factor once every decaySteps calls 
+     * to add().
+     */
+    public synchronized void setDecay(double factor, long decaySteps) {
+        Preconditions.checkArgument(factor > 0.0 && factor <= 1.0);
+        Preconditions.checkArgument(decaySteps > 0);
+        
+        this.decayFactor = factor;
+        this.decaySteps = decaySteps;
+        this.ticker = null;
+    }
+    
+    /**
+     * Multiplies every value by the factor for every period of time 
+     * passed.  Applied on add().
+     */
+    public synchronized void setDecay(double factor, long period, TimeUnit unit, Ticker ticker) {
+        Preconditions.checkArgument(factor > 0.0 && factor <= 1.0);
+        Preconditions.checkArgument(period > 0);
+        Preconditions.checkNotNull(unit);
+        Preconditions.checkNotNull(ticker);
+        
+        this.decayFactor = factor;
+        this.decaySteps = 0;
+        this.decayNanos = unit.toNanos(period);
+        this.ticker = ticker;
+        this.lastDecayNanos = ticker.read();
+    }
+    
+    public synchronized void setDecay(double factor, long period, TimeUnit unit) {
+        this.setDecay(factor, period, unit, Ticker.systemTicker());
+    }
+    
+    public final int getCapacity() {
+        return this.capacity;
+    }
+    
+    public final EvictionPolicy getEvictionPolicy() {
+        return this.evictionPolicy;
+    }
+    
+    /**
+     * How many sets have been evicted to stay within capacity.
+     */
+    public final long getEvictionCount() {
+        return this.evictionCount;
+    }
+    
+    /**
+     * How many decay periods have been applied.
+     */
+    public final long getDecayCount() {
+        return this.decayCount;
+    }
+    
+    public final RewardFunction getRewardFunction() {
+        return this.rewardFunction;
+    }
+    
+    public final MatchMode getMatchMode() {
+        return this.matchMode;
+    }
+    
+    public final double getMinSimilarity() {
+        return this.minSimilarity;
+    }
+    
     public final long getCount() {
-        return this.predictionValuesByIdSet.size();
+        // a restored table knows its count before it's decoded
+        return this.pending != null ? this.pendingCount : this.size;
     }
     
-    public synchronized String getDisplay() {
-        StringBuilder sb = new StringBuilder();
+    // Weakly consistent - shows some state during learning, never blocks it.
+    // Doesn't decode a restored table, watching it shouldn't load it.
+    public String getDisplay() {
+        if (this.pending != null) {
+            return this.pendingCount + " sets, not loaded";
+        }
         
-        int i = 0;
+        StringBuilder sb = new StringBuilder();
         
-        for (Map.Entry<IdentifierSet,Double> entry : this.predictionValuesByIdSet.entrySet()) {
-            sb.append(entry.getKey());
-            sb.append(" - ");
-            sb.append(entry.getValue());
-
-            if (i < this.predictionValuesByIdSet.size() - 1) {
+        for (Entry entry : this.entriesByIdSet.values()) {
+            if (sb.length() > 0) {
                 sb.append("\n");
             }
-
-            i++;
+            
+            sb.append(entry.idSet);
+            sb.append(" - ");
+            sb.append(this.valueOf(entry));
         }
         
         return sb.toString();
     }
     
-    // TBD: multiple predictions based on similarity?
+    /**
+     * In EXACT mode the value of the identical set, in OVERLAP mode the value 
+     * of the best match.  NULL_VALUE if nothing matches.
+     */
     public double getPrediction(IdentifierSet identifierSet) {
-        Double predictionValue = this.predictionValuesByIdSet.get(identifierSet);
-        return predictionValue != null ? predictionValue : NULL_VALUE;
+        this.materialize();
+        
+        Entry exactMatch = this.entriesByIdSet.get(identifierSet);
+        
+        if (exactMatch != null) {
+            return this.valueOf(exactMatch);
+        }
+        
+        if (this.matchMode == MatchMode.OVERLAP) {
+            synchronized (this) {
+                List<Match> matches = this.getMatches(identifierSet, 1);
+                return matches.isEmpty() ? NULL_VALUE : matches.get(0).value;
+            }
+        }
+        
+        return NULL_VALUE;
+    }
+    
+    /**
+     * Returns up to max learned sets at or above the minimum similarity to 
+     * the given set, best first, regardless of the match mode.
+     */
+    public synchronized List<Match> getPredictions(IdentifierSet identifierSet, int max) {
+        Preconditions.checkArgument(max > 0);
+        
+        this.materialize();
+        
+        return this.getMatches(identifierSet, max);
     }
 
     public final boolean isEmpty() {
-        return this.predictionValuesByIdSet.isEmpty();
+        return this.getCount() == 0;
     }
     
     @Override
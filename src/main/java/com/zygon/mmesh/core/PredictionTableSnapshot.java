@@ -0,0 +1,321 @@
+
+package com.zygon.mmesh.core;
+
+import com.google.common.base.Preconditions;
+import com.zygon.mmesh.Identifier;
+import com.zygon.mmesh.message.IdentifierCodec;
+import com.zygon.mmesh.message.MessageView;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Saves the learned sets of many prediction tables to one file and restores
+ * them from it.  A restore maps the file and hands each table its section,
+ * which is only decoded when the table is first used - so a big group is
+ * ready as soon as the index is read, and tables that are never used again
+ * are never decoded.  Their sections are copied as is into the next snapshot.
+ *
+ * Only the sets and their values are kept, the table settings (reward
+ * function, capacity, decay) come from the tables being restored into.
+ *
+ * <pre>
+ *   header   int magic, int version
+ *   sections one per table, its entries back to back:
+ *              double value, varint (count &lt;&lt; 1 | sorted), identifiers
+ *              - the identifiers as {@link IdentifierCodec} writes them
+ *   index    one per table: int cell, int entry count, long offset, int length,
+ *              long log position (version 2 on)
+ *   footer   long index offset, int table count, int magic
+ * </pre>
+ *
+ * The log position is how far into a {@link PredictionLog} the table had
+ * got, so recovery replays only the adds the snapshot doesn't have.
+ *
+ * Snapshots are written to a temporary file and moved over the old one once
+ * synced, so a crash while writing leaves the last snapshot in place.
+ *
+ * @author zygon
+ */
+public final class PredictionTableSnapshot {
+    
+    public static final int MAGIC = 0x4D4D5054; // MMPT
+    public static final int VERSION = 2;
+    
+    private static final int HEADER_SIZE = 8;
+    private static final int INDEX_ENTRY_SIZE = 28;
+    private static final int V1_INDEX_ENTRY_SIZE = 20;
+    private static final int FOOTER_SIZE = 16;
+    
+    // Mapped a region at a time, a MappedByteBuffer can't go past 2GB
+    private static final long MAX_REGION_SIZE = 1L << 30;
+    private static final int FLUSH_SIZE = 1 << 20;
+    
+    // A growable buffer for writing
+    private static final class Output {
+        
+        private ByteBuffer buffer = ByteBuffer.allocate(FLUSH_SIZE * 2);
+        
+        private void ensure(int size) {
+            if (this.buffer.remaining() < size) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(this.buffer.capacity() * 2, this.buffer.position() + size));
+                this.buffer.flip();
+                bigger.put(this.buffer);
+                this.buffer = bigger;
+            }
+        }
+        
+        private void writeTo(FileChannel channel) throws IOException {
+            this.buffer.flip();
+            
+            while (this.buffer.hasRemaining()) {
+                channel.write(this.buffer);
+            }
+            
+            this.buffer.clear();
+        }
+    }
+    
+    // The registry indices of a set as it's read
+    private static final class IndexCollector implements MessageView.Visitor {
+        
+        private int[] indices = new int[16];
+        private int count = 0;
+        
+        @Override
+        public void visit(Identifier id) {
+            if (this.count == this.indices.length) {
+                this.indices = Arrays.copyOf(this.indices, this.count * 2);
+            }
+            
+            this.indices[this.count++] = id.getIndex();
+        }
+    }
+    
+    private PredictionTableSnapshot() {
+    }
+    
+    /**
+     * At least the number of bytes an entry of the identifiers takes.
+     */
+    /*pkg*/ static int getMaxEncodedSize(Identifier[] ids) {
+        return 8 + IdentifierCodec.getMaxEncodedSize(Arrays.asList(ids));
+    }
+    
+    /**
+     * Writes one entry, as in a section, at the buffer's position.  The 
+     * buffer has to have {@link #getMaxEncodedSize(Identifier[])} bytes 
+     * remaining.
+     */
+    /*pkg*/ static void encode(Identifier[] ids, double value, ByteBuffer buffer) {
+        buffer.putDouble(value);
+        IdentifierCodec.encode(Arrays.asList(ids), buffer);
+    }
+    
+    /**
+     * Decodes a table's section, see
+     * {@link PredictionTable#restore(ByteBuffer, int, long)}, or any run of 
+     * entries.
+     */
+    /*pkg*/ static void read(ByteBuffer section, PredictionTable.EntryVisitor visitor) {
+        IndexCollector collector = new IndexCollector();
+        
+        while (section.hasRemaining()) {
+            double value = section.getDouble();
+            
+            collector.count = 0;
+            IdentifierCodec.getIdentifiers(section, collector);
+            
+            visitor.visit(IdentifierSet.fromIndices(collector.indices, collector.count), value);
+        }
+    }
+    
+    /**
+     * Writes the tables, keyed by their (1D) cell, to the file.  Each table
+     * is saved as of one moment but they're not all saved at the same one,
+     * for that take the snapshot while the group is idle.
+     */
+    public static void write(Map<Identifier, PredictionTable> tables, File file) throws IOException {
+        Preconditions.checkArgument(tables != null);
+        Preconditions.checkArgument(file != null);
+        
+        File tmp = new File(file.getPath() + ".tmp");
+        ByteBuffer index = ByteBuffer.allocate(tables.size() * INDEX_ENTRY_SIZE);
+        final Output out = new Output();
+        
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            
+            out.buffer.putInt(MAGIC);
+            out.buffer.putInt(VERSION);
+            
+            long offset = HEADER_SIZE;
+            
+            for (Map.Entry<Identifier, PredictionTable> entry : tables.entrySet()) {
+                Identifier id = entry.getKey();
+                PredictionTable table = entry.getValue();
+                Preconditions.checkArgument(id.getDimensions() == 1, "Not a cell: %s", id);
+                
+                int start = out.buffer.position();
+                final int[] count = new int[1];
+                long logPosition;
+                
+                // the section, its count and log position as of one moment
+                synchronized (table) {
+                    ByteBuffer section = table.getSnapshotSection();
+                    
+                    if (section != null) {
+                        // never used since the last restore, copy as is
+                        out.ensure(section.remaining());
+                        out.buffer.put(section.duplicate());
+                        count[0] = (int) table.getCount();
+                    } else {
+                        table.forEachEntry(new PredictionTable.EntryVisitor() {
+                            @Override
+                            public void visit(IdentifierSet idSet, double value) {
+                                Identifier[] ids = idSet.getIdentifiers();
+                                
+                                out.ensure(getMaxEncodedSize(ids));
+                                encode(ids, value, out.buffer);
+                                count[0]++;
+                            }
+                        });
+                    }
+                    
+                    logPosition = table.getLogPosition();
+                }
+                
+                int length = out.buffer.position() - start;
+                
+                index.putInt(id.getCoordinate(0));
+                index.putInt(count[0]);
+                index.putLong(offset);
+                index.putInt(length);
+                index.putLong(logPosition);
+                
+                offset += length;
+                
+                if (out.buffer.position() >= FLUSH_SIZE) {
+                    out.writeTo(channel);
+                }
+            }
+            
+            out.writeTo(channel);
+            
+            index.flip();
+            while (index.hasRemaining()) {
+                channel.write(index);
+            }
+            
+            out.ensure(FOOTER_SIZE);
+            out.buffer.putLong(offset);
+            out.buffer.putInt(tables.size());
+            out.buffer.putInt(MAGIC);
+            out.writeTo(channel);
+            
+            channel.force(true);
+        }
+        
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of snapshot");
+            }
+        }
+        
+        buffer.flip();
+        
+        return buffer;
+    }
+    
+    /**
+     * Maps the file and points each of the given tables at its section, to
+     * be decoded on first use.  Tables must be empty, tables not in the
+     * snapshot are left alone.  Returns the number of tables restored.
+     */
+    public static int restore(File file, Map<Identifier, PredictionTable> tables) throws IOException {
+        Preconditions.checkArgument(file != null);
+        Preconditions.checkArgument(tables != null);
+        
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            
+            if (size < HEADER_SIZE + FOOTER_SIZE) {
+                throw new IOException("Not a snapshot: " + file);
+            }
+            
+            ByteBuffer header = read(channel, 0, HEADER_SIZE);
+            ByteBuffer footer = read(channel, size - FOOTER_SIZE, FOOTER_SIZE);
+            
+            if (header.getInt() != MAGIC || footer.getInt(12) != MAGIC) {
+                throw new IOException("Not a snapshot: " + file);
+            }
+            
+            int version = header.getInt();
+            if (version != VERSION && version != 1) {
+                throw new IOException("Unknown snapshot version " + version + ": " + file);
+            }
+            
+            // version 1 has no log positions
+            int entrySize = version == 1 ? V1_INDEX_ENTRY_SIZE : INDEX_ENTRY_SIZE;
+            
+            long indexOffset = footer.getLong();
+            int tableCount = footer.getInt();
+            
+            if (tableCount < 0 || indexOffset < HEADER_SIZE
+                    || indexOffset + (long) tableCount * entrySize != size - FOOTER_SIZE) {
+                throw new IOException("Corrupt snapshot index: " + file);
+            }
+            
+            MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, (long) tableCount * entrySize);
+            MappedByteBuffer region = null;
+            long regionStart = 0;
+            int restored = 0;
+            
+            for (int i = 0; i < tableCount; i++) {
+                int cell = index.getInt();
+                int count = index.getInt();
+                long offset = index.getLong();
+                int length = index.getInt();
+                long logPosition = version == 1 ? 0 : index.getLong();
+                
+                if (offset < HEADER_SIZE || length < 0 || offset + length > indexOffset) {
+                    throw new IOException("Corrupt snapshot index: " + file);
+                }
+                
+                PredictionTable table = tables.get(Identifier.of(cell));
+                
+                if (table == null || count == 0) {
+                    continue;
+                }
+                
+                if (region == null || offset < regionStart || offset + length > regionStart + region.capacity()) {
+                    regionStart = offset;
+                    region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart,
+                            Math.max(length, Math.min(MAX_REGION_SIZE, indexOffset - regionStart)));
+                }
+                
+                ByteBuffer section = region.duplicate();
+                section.position((int) (offset - regionStart));
+                section.limit(section.position() + length);
+                
+                table.restore(section.slice(), count, logPosition);
+                restored++;
+            }
+            
+            return restored;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+
+package com.zygon.mmesh.core;
+
+/**
+ * Weights a prediction reward by the size of the match, i.e. the size of the
+ * re-enforced set or the length of the matching substring.
+ *
+ * @author zygon
+ */
+public interface RewardFunction {
+    
+    /**
+     * @param size never negative
+     */
+    public double getReward(int size);
+}
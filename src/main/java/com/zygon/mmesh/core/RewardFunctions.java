@@ -0,0 +1,79 @@
+
+package com.zygon.mmesh.core;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The stock reward curves.  They all give 0 for 0 and 1 for 1 so they only 
+ * differ in how much larger matches are favored.
+ *
+ * @author zygon
+ */
+public final class RewardFunctions {
+    
+    // fib(1476) is the largest that fits in a double
+    private static final double[] FIB_TABLE = new double[1477];
+    
+    static {
+        FIB_TABLE[0] = 0;
+        FIB_TABLE[1] = 1;
+        
+        for (int i = 2; i < FIB_TABLE.length; i++) {
+            FIB_TABLE[i] = FIB_TABLE[i - 1] + FIB_TABLE[i - 2];
+        }
+    }
+    
+    private static final double LOG_2 = Math.log(2);
+    
+    /**
+     * fib(size), favors large matches strongly. Sizes past the largest 
+     * representable value are capped there.
+     */
+    public static final RewardFunction FIBONACCI = new RewardFunction() {
+        @Override
+        public double getReward(int size) {
+            Preconditions.checkArgument(size >= 0);
+            return FIB_TABLE[Math.min(size, FIB_TABLE.length - 1)];
+        }
+
+        @Override
+        public String toString() {
+            return "FIBONACCI";
+        }
+    };
+    
+    /**
+     * size
+     */
+    public static final RewardFunction LINEAR = new RewardFunction() {
+        @Override
+        public double getReward(int size) {
+            Preconditions.checkArgument(size >= 0);
+            return size;
+        }
+
+        @Override
+        public String toString() {
+            return "LINEAR";
+        }
+    };
+    
+    /**
+     * log2(size + 1), favors large matches only slightly.
+     */
+    public static final RewardFunction LOG = new RewardFunction() {
+        @Override
+        public double getReward(int size) {
+            Preconditions.checkArgument(size >= 0);
+            return Math.log(size + 1) / LOG_2;
+        }
+
+        @Override
+        public String toString() {
+            return "LOG";
+        }
+    };
+    
+    private RewardFunctions() {
+    }
+}
@@ -0,0 +1,359 @@
+
+package com.zygon.mmesh.core;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zygon.mmesh.Identifier;
+import com.zygon.mmesh.message.Message;
+import com.zygon.mmesh.message.MessageQueue;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits the cells into shards, one thread each (one per core by default).
+ * A shard owns its cells: they only ever run on the shard's thread, so a 
+ * cell's tables are never touched by two threads at once.
+ * 
+ * Cells are sharded in the order given, a CellGroup gives them in index 
+ * order so neighborhoods mostly stay within a shard.  Predictions to a cell 
+ * in another shard don't go straight into its queue, they're collected per 
+ * target shard and handed over as one batch when the sending shard runs out 
+ * of work (or the batch fills up).  The shards then only share a counter of 
+ * outstanding tasks, touched once per batch rather than once per message.
+ * 
+ * A shard's thread is the only one draining its cells' queues, so it never
+ * waits on one: a message for a full queue is held back and retried after 
+ * the shard's cells have had a run.  Puts from outside (e.g. the SDR) 
+ * follow the queues' overflow policy as usual.
+ * 
+ * The runtime rewires the cells' routers, every cell can reach every other.
+ *
+ * @author zygon
+ */
+public class ShardedCellRuntime implements CellRuntime {
+    
+    private static final int MAX_TRANSFER = 256;
+    
+    // Messages for one other shard, with the queues they're going into
+    private static final class Transfer {
+        
+        private MessageQueue[] queues = new MessageQueue[16];
+        private Message[] messages = new Message[16];
+        private int size = 0;
+        
+        private void add(MessageQueue queue, Message message) {
+            if (this.size == this.queues.length) {
+                this.queues = Arrays.copyOf(this.queues, this.size * 2);
+                this.messages = Arrays.copyOf(this.messages, this.size * 2);
+            }
+            
+            this.queues[this.size] = queue;
+            this.messages[this.size] = message;
+            this.size++;
+        }
+    }
+    
+    // Stands in for a cell's queue in the routers of a shard
+    private static final class ShardQueue extends MessageQueue {
+        
+        private final Shard source;
+        private final Shard target;
+        private final MessageQueue queue;
+        
+        private ShardQueue(Shard source, Shard target, MessageQueue queue) {
+            this.source = source;
+            this.target = target;
+            this.queue = queue;
+        }
+        
+        // Only ever called on the source shard's thread
+        @Override
+        protected boolean offer(Message msg) {
+            if (this.source == this.target) {
+                this.source.deliver(this.queue, msg);
+            } else {
+                this.source.send(this.target, this.queue, msg);
+            }
+            return true;
+        }
+        
+        @Override
+        protected boolean offer(Message msg, long timeoutNanos) {
+            return this.offer(msg);
+        }
+        
+        @Override
+        protected Message removeOldest() {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        protected Message dequeue() {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        protected Message take() {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public int getCapacity() {
+            return this.queue.getCapacity();
+        }
+        
+        @Override
+        public boolean hasMessage() {
+            return false;
+        }
+    }
+    
+    private final class Shard extends EventDrivenCellRuntime {
+        
+        private final int index;
+        private final ThreadPoolExecutor executor;
+        private final Transfer[] outbox;
+        
+        // Messages for full queues, in the order sent
+        private final ArrayDeque<MessageQueue> backlogQueues = Queues.newArrayDeque();
+        private final ArrayDeque<Message> backlogMessages = Queues.newArrayDeque();
+        private final Runnable retry = new Runnable() {
+            @Override
+            public void run() {
+                retry();
+            }
+        };
+        
+        private Shard(int index, ThreadPoolExecutor executor, int batchSize) {
+            super(executor, true, batchSize, Fairness.FAIR);
+            this.index = index;
+            this.executor = executor;
+            this.outbox = new Transfer[shardCount];
+        }
+        
+        // The cells already route through ShardQueues, which never wait
+        @Override
+        /*pkg*/ void reroute(List<Mailbox> mailboxes) {
+        }
+        
+        @Override
+        protected void schedule(final Runnable mailbox) {
+            this.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mailbox.run();
+                    
+                    // Out of work - hand over what's collected
+                    if (executor.getQueue().isEmpty()) {
+                        flush();
+                    }
+                }
+            });
+        }
+        
+        private void execute(final Runnable task) {
+            pending.incrementAndGet();
+            
+            try {
+                this.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            pending.decrementAndGet();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                pending.decrementAndGet();
+                throw ree;
+            }
+        }
+        
+        // Only on this shard's thread.  Once something is held back the rest
+        // queues up behind it, so a cell gets its messages in order.
+        private void deliver(MessageQueue queue, Message message) {
+            if (this.backlogQueues.isEmpty() && queue.tryPut(message)) {
+                return;
+            }
+            
+            this.backlogQueues.add(queue);
+            this.backlogMessages.add(message);
+            
+            if (this.backlogQueues.size() == 1) {
+                this.scheduleRetry();
+            }
+        }
+        
+        private void scheduleRetry() {
+            try {
+                // behind the runs of the cells that have to make room
+                this.execute(this.retry);
+            } catch (RejectedExecutionException ree) {
+                // stopping, nowhere to deliver to
+                this.backlogQueues.clear();
+                this.backlogMessages.clear();
+            }
+        }
+        
+        private void retry() {
+            while (!this.backlogQueues.isEmpty()) {
+                if (!this.backlogQueues.peek().tryPut(this.backlogMessages.peek())) {
+                    this.scheduleRetry();
+                    return;
+                }
+                
+                this.backlogQueues.poll();
+                this.backlogMessages.poll();
+            }
+        }
+        
+        private void send(Shard target, MessageQueue queue, Message message) {
+            Transfer transfer = this.outbox[target.index];
+            
+            if (transfer == null) {
+                transfer = new Transfer();
+                this.outbox[target.index] = transfer;
+            }
+            
+            transfer.add(queue, message);
+            
+            if (transfer.size >= MAX_TRANSFER) {
+                this.flush(target);
+            }
+        }
+        
+        private void flush() {
+            for (Shard target : shards) {
+                if (this.outbox[target.index] != null) {
+                    this.flush(target);
+                }
+            }
+        }
+        
+        private void flush(Shard target) {
+            final Transfer transfer = this.outbox[target.index];
+            final Shard receiver = target;
+            this.outbox[target.index] = null;
+            
+            try {
+                target.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < transfer.size; i++) {
+                            receiver.deliver(transfer.queues[i], transfer.messages[i]);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                // stopping, nowhere to deliver to
+            }
+        }
+    }
+    
+    private static ThreadPoolExecutor createExecutor(int index) {
+        return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), 
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("cell-shard-" + index).build());
+    }
+    
+    private final int shardCount;
+    private final int batchSize;
+    private final List<Shard> shards = Lists.newArrayList();
+    
+    // Queued or running tasks of all the shards, mailbox runs and transfers
+    private final AtomicInteger pending = new AtomicInteger(0);
+    
+    public ShardedCellRuntime(int shardCount, int batchSize) {
+        Preconditions.checkArgument(shardCount > 0);
+        Preconditions.checkArgument(batchSize > 0);
+        
+        this.shardCount = shardCount;
+        this.batchSize = batchSize;
+    }
+    
+    public ShardedCellRuntime() {
+        this(Runtime.getRuntime().availableProcessors(), 64);
+    }
+    
+    public int getShardCount() {
+        return this.shardCount;
+    }
+    
+    @Override
+    public void start(Collection<Cell> cells) {
+        Preconditions.checkState(this.shards.isEmpty());
+        
+        Cell[] all = cells.toArray(new Cell[cells.size()]);
+        int count = Math.min(this.shardCount, all.length);
+        Shard[] shardByCell = new Shard[all.length];
+        
+        for (int s = 0; s < count; s++) {
+            this.shards.add(new Shard(s, createExecutor(s), this.batchSize));
+        }
+        
+        // Contiguous ranges
+        for (int i = 0; i < all.length; i++) {
+            shardByCell[i] = this.shards.get((int) ((long) i * count / all.length));
+        }
+        
+        // Anything else the cells were routing to, i.e. cells in other 
+        // processes, stays as it was.  The group's cells all share one map.
+        Map<Identifier, MessageQueue> others = Maps.newHashMap();
+        if (all.length > 0) {
+            others.putAll(all[0].getRouter().getDestinations());
+        }
+        for (Cell cell : all) {
+            others.remove(cell.getIdentifier());
+        }
+        
+        // Each shard's own view of the group - stand-ins for every cell's 
+        // queue, delivering to its own cells without waiting and batching 
+        // for everyone else's.  Shared by the shard's cells.
+        for (Shard shard : this.shards) {
+            ImmutableMap.Builder<Identifier, MessageQueue> queuesById = ImmutableMap.builder();
+            List<Cell> shardCells = Lists.newArrayList();
+            
+            for (int i = 0; i < all.length; i++) {
+                if (shardByCell[i] == shard) {
+                    shardCells.add(all[i]);
+                }
+                
+                queuesById.put(all[i].getIdentifier(), new ShardQueue(shard, shardByCell[i], all[i].getQueue()));
+            }
+            
+            queuesById.putAll(others);
+            ImmutableMap<Identifier, MessageQueue> view = queuesById.build();
+            
+            for (Cell cell : shardCells) {
+                cell.setNeighbors(view);
+            }
+            
+            shard.start(shardCells);
+        }
+    }
+    
+    @Override
+    public void stop() {
+        for (Shard shard : this.shards) {
+            shard.stop();
+        }
+    }
+    
+    @Override
+    public boolean isIdle() {
+        return this.pending.get() == 0;
+    }
+}
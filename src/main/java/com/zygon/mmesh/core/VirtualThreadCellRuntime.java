@@ -0,0 +1,288 @@
+
+package com.zygon.mmesh.core;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.zygon.mmesh.Identifier;
+import com.zygon.mmesh.message.Message;
+import com.zygon.mmesh.message.MessageQueue;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A thread per cell, each simply blocking on its queue - the plain blocking 
+ * code, but on virtual threads so it scales to hundreds of thousands of 
+ * cells.  Virtual threads need a Java 21 runtime; they are looked up 
+ * reflectively so the rest of the mesh still runs on older ones.
+ * 
+ * A cell's thread never waits on another cell's full queue, two cells 
+ * doing that to each other would wait forever.  The runtime rewires the 
+ * cells' routers so that a message for a full queue is held back by the 
+ * sending cell's thread and retried between its own messages.  Puts from 
+ * outside (e.g. the SDR) follow the queues' overflow policy as usual.
+ *
+ * @author zygon
+ */
+public class VirtualThreadCellRuntime implements CellRuntime {
+    
+    private static final ThreadFactory VIRTUAL_THREAD_FACTORY = createVirtualThreadFactory();
+    
+    // How long a thread holding messages back waits for one of its own
+    // before trying them again
+    private static final long RETRY_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    
+    // Thread.ofVirtual().factory()
+    private static ThreadFactory createVirtualThreadFactory() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            
+            return (ThreadFactory) factory.invoke(ofVirtual.invoke(null));
+        } catch (ReflectiveOperationException roe) {
+            return null;
+        }
+    }
+    
+    public static boolean isSupported() {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+    
+    // Stands in for a cell's queue in the routers of the group's cells
+    private final class CellQueue extends MessageQueue {
+        
+        private final MessageQueue queue;
+        
+        private CellQueue(MessageQueue queue) {
+            this.queue = queue;
+        }
+        
+        @Override
+        protected boolean offer(Message msg) {
+            Worker sender = current.get();
+            
+            if (sender != null) {
+                sender.send(this.queue, msg);
+            } else {
+                // not from a cell's thread, free to wait
+                this.queue.put(msg);
+            }
+            return true;
+        }
+        
+        @Override
+        protected boolean offer(Message msg, long timeoutNanos) {
+            return this.offer(msg);
+        }
+        
+        @Override
+        protected Message removeOldest() {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        protected Message dequeue() {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        protected Message take() {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public int getCapacity() {
+            return this.queue.getCapacity();
+        }
+        
+        @Override
+        public boolean hasMessage() {
+            return false;
+        }
+    }
+    
+    // A cell's thread
+    private final class Worker implements Runnable {
+        
+        private final Cell cell;
+        private final List<Message> queued;
+        
+        // Messages the cell sent to full queues, in the order sent.  Only 
+        // touched by this thread, and counted as pending until they're in.
+        private final ArrayDeque<MessageQueue> backlogQueues = Queues.newArrayDeque();
+        private final ArrayDeque<Message> backlogMessages = Queues.newArrayDeque();
+        
+        private Worker(Cell cell, List<Message> queued) {
+            this.cell = cell;
+            this.queued = queued;
+        }
+        
+        // Once something is held back the rest queues up behind it, so a 
+        // cell gets its messages in order
+        private void send(MessageQueue queue, Message message) {
+            if (this.backlogQueues.isEmpty() && queue.tryPut(message)) {
+                return;
+            }
+            
+            pending.incrementAndGet();
+            this.backlogQueues.add(queue);
+            this.backlogMessages.add(message);
+        }
+        
+        private void retry() {
+            while (!this.backlogQueues.isEmpty()) {
+                if (!this.backlogQueues.peek().tryPut(this.backlogMessages.peek())) {
+                    return;
+                }
+                
+                this.backlogQueues.poll();
+                this.backlogMessages.poll();
+                pending.decrementAndGet();
+            }
+        }
+        
+        private void process(Message message) {
+            this.cell.process(message);
+            pending.decrementAndGet();
+        }
+        
+        @Override
+        public void run() {
+            current.set(this);
+            
+            MessageQueue queue = this.cell.getQueue();
+            
+            for (Message message : this.queued) {
+                this.process(message);
+            }
+            
+            while (running) {
+                this.retry();
+                
+                // only wait for a message as long as nothing is held back
+                Message message = this.backlogQueues.isEmpty() ? queue.get() : queue.poll();
+                
+                if (message != null) {
+                    this.process(message);
+                } else if (running) {
+                    // interrupted but not stopping - clear it, or every 
+                    // get() after would return null at once
+                    Thread.interrupted();
+                    
+                    if (!this.backlogQueues.isEmpty()) {
+                        LockSupport.parkNanos(RETRY_NANOS);
+                    }
+                }
+            }
+        }
+    }
+    
+    private final ThreadFactory threadFactory;
+    private final List<Thread> threads = Lists.newArrayList();
+    
+    // Messages put but not yet processed - counted by the queues before 
+    // they go in, so a message is never processed before it's counted
+    private final AtomicLong pending = new AtomicLong(0);
+    
+    // The worker of the cell thread this is, if it is one
+    private final ThreadLocal<Worker> current = new ThreadLocal<Worker>();
+    
+    private volatile boolean running = false;
+    
+    /**
+     * Any thread factory will do, platform threads are fine for small groups.
+     */
+    public VirtualThreadCellRuntime(ThreadFactory threadFactory) {
+        Preconditions.checkNotNull(threadFactory);
+        
+        this.threadFactory = threadFactory;
+    }
+    
+    public VirtualThreadCellRuntime() {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21+, running " + 
+                    System.getProperty("java.version"));
+        }
+        
+        this.threadFactory = VIRTUAL_THREAD_FACTORY;
+    }
+    
+    /**
+     * Messages already queued are handled first.  Nothing else may put to 
+     * the cells while starting, or they may be miscounted.
+     */
+    @Override
+    public void start(Collection<Cell> cells) {
+        Preconditions.checkState(!this.running && this.threads.isEmpty());
+        
+        this.running = true;
+        
+        this.reroute(cells);
+        
+        for (Cell cell : cells) {
+            MessageQueue queue = cell.getQueue();
+            
+            // what's there already is taken out and counted here, no one
+            // is consuming yet
+            List<Message> queued = Lists.newArrayList();
+            for (Message message = queue.poll(); message != null; message = queue.poll()) {
+                queued.add(message);
+            }
+            
+            this.pending.addAndGet(queued.size());
+            queue.setCounter(this.pending);
+            
+            Thread thread = this.threadFactory.newThread(new Worker(cell, queued));
+            
+            this.threads.add(thread);
+            thread.start();
+        }
+    }
+    
+    // Points the cells' routers at stand-ins for each other's queues.  
+    // Anything else they route to, i.e. cells in other processes, stays as
+    // it was.
+    private void reroute(Collection<Cell> cells) {
+        if (cells.isEmpty()) {
+            return;
+        }
+        
+        Map<Identifier, MessageQueue> others = Maps.newHashMap(cells.iterator().next().getRouter().getDestinations());
+        ImmutableMap.Builder<Identifier, MessageQueue> queuesById = ImmutableMap.builder();
+        
+        for (Cell cell : cells) {
+            others.remove(cell.getIdentifier());
+            queuesById.put(cell.getIdentifier(), new CellQueue(cell.getQueue()));
+        }
+        
+        queuesById.putAll(others);
+        ImmutableMap<Identifier, MessageQueue> view = queuesById.build();
+        
+        for (Cell cell : cells) {
+            cell.setNeighbors(view);
+        }
+    }
+    
+    @Override
+    public void stop() {
+        this.running = false;
+        
+        for (Thread thread : this.threads) {
+            thread.interrupt();
+        }
+    }
+    
+    @Override
+    public boolean isIdle() {
+        return this.pending.get() == 0;
+    }
+}
@@ -0,0 +1,41 @@
+
+package com.zygon.mmesh.message;
+
+import com.google.common.base.Preconditions;
+import com.zygon.mmesh.Identifier;
+import java.util.Set;
+
+/**
+ * Every activation of one SDR step in a single message, addressed to the 
+ * cell group.  A cell updates its activation table and looks up its 
+ * prediction once per frame instead of once per active bit.
+ * 
+ * The actives are kept as given, not copied or wrapped, so the cells can 
+ * use them directly - they must not be modified afterwards.
+ *
+ * @author zygon
+ */
+public class ActivationFrame extends Message {
+    
+    private final Set<Identifier> actives;
+    
+    public ActivationFrame(Identifier groupId, Set<Identifier> actives, long timestamp) {
+        super(Type.ACTIVATION_FRAME, groupId, actives.size(), timestamp);
+        Preconditions.checkArgument(!actives.isEmpty());
+        
+        this.actives = actives;
+    }
+    
+    public ActivationFrame(Identifier groupId, Set<Identifier> actives) {
+        this(groupId, actives, System.currentTimeMillis());
+    }
+    
+    @Override
+    protected String buildDisplay() {
+        return super.buildDisplay() + "," + this.actives;
+    }
+    
+    public Set<Identifier> getActives() {
+        return this.actives;
+    }
+}
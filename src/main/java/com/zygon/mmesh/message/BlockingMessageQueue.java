@@ -0,0 +1,72 @@
+
+package com.zygon.mmesh.message;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Queues;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The original mailbox, a single lock {@link ArrayBlockingQueue}.
+ *
+ * @author zygon
+ */
+public class BlockingMessageQueue extends MessageQueue {
+    
+    private final ArrayBlockingQueue<Message> queue;
+    
+    public BlockingMessageQueue(int capacity, OverflowPolicy overflowPolicy, long timeout, TimeUnit unit) {
+        super(overflowPolicy, timeout, unit);
+        Preconditions.checkArgument(capacity > 0);
+        
+        this.queue = Queues.newArrayBlockingQueue(capacity);
+    }
+    
+    public BlockingMessageQueue(int capacity) {
+        this(capacity, OverflowPolicy.BLOCK, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+    
+    public BlockingMessageQueue() {
+        this(MessageQueues.DEFAULT_CAPACITY);
+    }
+    
+    @Override
+    protected boolean offer(Message msg) {
+        return this.queue.offer(msg);
+    }
+    
+    @Override
+    protected boolean offer(Message msg, long timeoutNanos) throws InterruptedException {
+        if (timeoutNanos == Long.MAX_VALUE) {
+            this.queue.put(msg);
+            return true;
+        }
+        
+        return this.queue.offer(msg, timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    @Override
+    protected Message removeOldest() {
+        return this.queue.poll();
+    }
+    
+    @Override
+    protected Message dequeue() {
+        return this.queue.poll();
+    }
+    
+    @Override
+    protected Message take() throws InterruptedException {
+        return this.queue.take();
+    }
+    
+    @Override
+    public int getCapacity() {
+        return this.queue.size() + this.queue.remainingCapacity();
+    }
+    
+    @Override
+    public boolean hasMessage() {
+        return !this.queue.isEmpty();
+    }
+}
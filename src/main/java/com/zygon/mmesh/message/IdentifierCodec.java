@@ -0,0 +1,227 @@
+
+package com.zygon.mmesh.message;
+
+import com.google.common.base.Preconditions;
+import com.zygon.mmesh.Identifier;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * The binary form of identifiers and sets of them, as laid out in
+ * {@link MessageCodec}.  Shared by the messages and anything else that
+ * stores identifiers, e.g. the prediction table snapshots.  Reads and
+ * writes go from the buffer's position and leave it just past what was
+ * read or written.
+ *
+ * @author zygon
+ */
+public final class IdentifierCodec {
+    
+    public static final int MAX_VARINT_SIZE = 5;
+    
+    private IdentifierCodec() {
+    }
+    
+    public static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+    
+    public static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+    
+    public static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        
+        buffer.put((byte) value);
+    }
+    
+    public static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            
+            if (b >= 0) {
+                return value;
+            }
+        }
+        
+        throw new IllegalArgumentException("Malformed varint at " + (buffer.position() - 1));
+    }
+    
+    public static int getMaxEncodedSize(Identifier id) {
+        return MAX_VARINT_SIZE * (1 + id.getDimensions());
+    }
+    
+    public static int getMaxEncodedSize(Collection<Identifier> ids) {
+        int size = MAX_VARINT_SIZE;
+        
+        for (Identifier id : ids) {
+            size += getMaxEncodedSize(id);
+        }
+        
+        return size;
+    }
+    
+    public static void encode(Identifier id, ByteBuffer buffer) {
+        int dims = id.getDimensions();
+        
+        putVarint(buffer, dims);
+        
+        for (int i = 0; i < dims; i++) {
+            putVarint(buffer, zigZag(id.getCoordinate(i)));
+        }
+    }
+    
+    // Ascending coordinates, the gaps are taken as unsigned so even the
+    // widest ones come back right
+    private static void encodeSorted(int[] coords, int count, ByteBuffer buffer) {
+        putVarint(buffer, zigZag(coords[0]));
+        
+        for (int i = 1; i < count; i++) {
+            putVarint(buffer, coords[i] - coords[i - 1]);
+        }
+    }
+    
+    /**
+     * All 1D sets are written sorted, whatever order they're iterated in.
+     */
+    public static void encode(Collection<Identifier> ids, ByteBuffer buffer) {
+        int count = ids.size();
+        boolean oneDimensional = true;
+        boolean ascending = true;
+        long last = Long.MIN_VALUE;
+        
+        for (Identifier id : ids) {
+            if (id.getDimensions() != 1) {
+                oneDimensional = false;
+                break;
+            }
+            
+            ascending &= id.getCoordinate(0) > last;
+            last = id.getCoordinate(0);
+        }
+        
+        if (count == 0 || !oneDimensional) {
+            putVarint(buffer, count << 1);
+            
+            for (Identifier id : ids) {
+                encode(id, buffer);
+            }
+            
+            return;
+        }
+        
+        putVarint(buffer, (count << 1) | 1);
+        
+        if (ascending) {
+            // the usual case, cells are interned in order - no copy needed
+            int previous = 0;
+            int i = 0;
+            
+            for (Identifier id : ids) {
+                int coord = id.getCoordinate(0);
+                putVarint(buffer, i++ == 0 ? zigZag(coord) : coord - previous);
+                
+                previous = coord;
+            }
+        } else {
+            int[] coords = new int[count];
+            int i = 0;
+            
+            for (Identifier id : ids) {
+                coords[i++] = id.getCoordinate(0);
+            }
+            
+            Arrays.sort(coords);
+            encodeSorted(coords, count, buffer);
+        }
+    }
+    
+    private static int getDimensions(ByteBuffer buffer) {
+        int dims = getVarint(buffer);
+        Preconditions.checkArgument(dims > 0 && dims <= buffer.remaining(),
+                "Bad identifier dimensions %s", dims);
+        
+        return dims;
+    }
+    
+    public static Identifier getIdentifier(ByteBuffer buffer) {
+        int dims = getDimensions(buffer);
+        
+        if (dims == 1) {
+            // no array, the registry has a fast path for 1D
+            return Identifier.of(unZigZag(getVarint(buffer)));
+        }
+        
+        int[] coords = new int[dims];
+        
+        for (int i = 0; i < dims; i++) {
+            coords[i] = unZigZag(getVarint(buffer));
+        }
+        
+        return Identifier.of(coords);
+    }
+    
+    public static void skipIdentifier(ByteBuffer buffer) {
+        int dims = getDimensions(buffer);
+        
+        for (int i = 0; i < dims; i++) {
+            getVarint(buffer);
+        }
+    }
+    
+    // The count and the sorted flag
+    private static int getIdentifiersHeader(ByteBuffer buffer) {
+        int header = getVarint(buffer);
+        
+        // every identifier takes at least a byte
+        Preconditions.checkArgument(header >>> 1 <= buffer.remaining(), "Bad identifier count %s", header >>> 1);
+        
+        return header;
+    }
+    
+    /**
+     * The size of a set, reading only as far as that.
+     */
+    public static int getIdentifierCount(ByteBuffer buffer) {
+        return getIdentifiersHeader(buffer) >>> 1;
+    }
+    
+    /**
+     * Reads a set, handing each identifier to the visitor, or skips it if
+     * the visitor is null.  Returns the size of the set.
+     */
+    public static int getIdentifiers(ByteBuffer buffer, MessageView.Visitor visitor) {
+        int header = getIdentifiersHeader(buffer);
+        int count = header >>> 1;
+        
+        if ((header & 1) != 0) {
+            int coord = 0;
+            
+            for (int i = 0; i < count; i++) {
+                coord = i == 0 ? unZigZag(getVarint(buffer)) : coord + getVarint(buffer);
+                
+                if (visitor != null) {
+                    visitor.visit(Identifier.of(coord));
+                }
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                if (visitor != null) {
+                    visitor.visit(getIdentifier(buffer));
+                } else {
+                    skipIdentifier(buffer);
+                }
+            }
+        }
+        
+        return count;
+    }
+}
@@ -12,6 +12,7 @@ public class Message {
     
     public static enum Type {
         ACTIVATION,
+        ACTIVATION_FRAME,
         PREDICTION,
     }
     
@@ -20,23 +21,30 @@ public class Message {
     private final double value;
     private final long timestamp;
     
-    private final String display;
+    // Built on demand, only needed for printing
+    private String display = null;
 
     public Message(Type type, Identifier destination, double value, long timestamp) {
         this.type = type;
         this.value = value;
         this.destination = destination;
         this.timestamp = timestamp;
-        
-        this.display = this.type.name() + "," + "[dest:" + this.destination + "]," + this.value + "," + new Date(this.timestamp);
+    }
+    
+    protected String buildDisplay() {
+        return this.type.name() + "," + "[dest:" + this.destination + "]," + this.value + "," + new Date(this.timestamp);
     }
     
     public Identifier getDestination() {
         return destination;
     }
 
-    public String getDisplay() {
-        return display;
+    public final String getDisplay() {
+        if (this.display == null) {
+            this.display = this.buildDisplay();
+        }
+        
+        return this.display;
     }
 
     public long getTimestamp() {
@@ -57,6 +65,6 @@ public class Message {
 
     @Override
     public String toString() {
-        return this.display;
+        return this.getDisplay();
     }
 }
@@ -0,0 +1,106 @@
+
+package com.zygon.mmesh.message;
+
+import com.google.common.base.Preconditions;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary form of the messages, for sending them to other processes or
+ * recording them.  Read them back with {@link #decode(ByteBuffer)}, or with a
+ * {@link MessageView} to get at single fields without building the message.
+ * The identifiers are written by {@link IdentifierCodec}.
+ *
+ * Identifiers go by their coordinates, not their registry index, the index
+ * is only good within one process.  The layout is:
+ *
+ * <pre>
+ *   version      byte
+ *   type         byte
+ *   value        double
+ *   timestamp    long
+ *   destination  identifier
+ *   PREDICTION:        source identifier, actives identifiers
+ *   ACTIVATION_FRAME:  actives identifiers
+ *
+ *   identifier  = varint dimensions, zigzag varint per coordinate
+ *   identifiers = varint (count &lt;&lt; 1 | sorted), then
+ *                   sorted:     all 1D, the first coordinate as a zigzag
+ *                               varint then the gaps to the next as varints
+ *                   otherwise:  count identifiers
+ * </pre>
+ *
+ * The fixed size fields come first so a view reads them without scanning.
+ * SDR actives are 1D cells, close together, so most gaps fit in a byte.
+ *
+ * @author zygon
+ */
+public final class MessageCodec {
+    
+    public static final byte VERSION = 1;
+    
+    /*pkg*/ static final int VALUE_OFFSET = 2;
+    /*pkg*/ static final int TIMESTAMP_OFFSET = 10;
+    /*pkg*/ static final int HEADER_SIZE = 18;
+    
+    private MessageCodec() {
+    }
+    
+    /**
+     * At least the number of bytes {@link #encode(Message, ByteBuffer)}
+     * writes for the message, without doing the encoding.
+     */
+    public static int getMaxEncodedSize(Message message) {
+        int size = HEADER_SIZE + IdentifierCodec.getMaxEncodedSize(message.getDestination());
+        
+        switch (message.getType()) {
+            case PREDICTION:
+                PredictionMessage prediction = (PredictionMessage) message;
+                size += IdentifierCodec.getMaxEncodedSize(prediction.getSource()) 
+                        + IdentifierCodec.getMaxEncodedSize(prediction.getActives());
+                break;
+            case ACTIVATION_FRAME:
+                size += IdentifierCodec.getMaxEncodedSize(((ActivationFrame) message).getActives());
+                break;
+        }
+        
+        return size;
+    }
+    
+    /**
+     * Writes the message at the buffer's position, which has to have
+     * {@link #getMaxEncodedSize(Message)} bytes remaining.
+     */
+    public static void encode(Message message, ByteBuffer buffer) {
+        buffer.put(VERSION);
+        buffer.put((byte) message.getType().ordinal());
+        buffer.putDouble(message.getValue());
+        buffer.putLong(message.getTimestamp());
+        IdentifierCodec.encode(message.getDestination(), buffer);
+        
+        switch (message.getType()) {
+            case PREDICTION:
+                PredictionMessage prediction = (PredictionMessage) message;
+                IdentifierCodec.encode(prediction.getSource(), buffer);
+                IdentifierCodec.encode(prediction.getActives(), buffer);
+                break;
+            case ACTIVATION_FRAME:
+                IdentifierCodec.encode(((ActivationFrame) message).getActives(), buffer);
+                break;
+        }
+    }
+    
+    /**
+     * Reads one message from the buffer's position, leaving the position
+     * just past it.
+     */
+    public static Message decode(ByteBuffer buffer) {
+        Preconditions.checkArgument(buffer != null);
+        
+        MessageView view = new MessageView().wrap(buffer, buffer.position());
+        Message message = view.toMessage();
+        
+        buffer.position(buffer.position() + view.getLength());
+        
+        return message;
+    }
+}
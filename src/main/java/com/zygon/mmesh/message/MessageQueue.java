@@ -1,37 +1,326 @@
 
 package com.zygon.mmesh.message;
 
-import com.google.common.collect.Queues;
-import java.util.concurrent.ArrayBlockingQueue;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * A cell's mailbox - many producers (the group and every other cell's 
+ * router), one consumer (the cell).  See {@link MessageQueues} for the 
+ * implementations.
+ * 
+ * What a put does when the queue is full is up to the {@link OverflowPolicy},
+ * every message that doesn't make it in is counted.
  *
  * @author zygon
  */
-public class MessageQueue {
-    private final ArrayBlockingQueue<Message> queue = Queues.newArrayBlockingQueue(1024);
+public abstract class MessageQueue {
     
-    public void put (Message msg) {
-        try {
-            this.queue.put(msg);
-        } catch (InterruptedException e) {
-            // just dump for now
-//            e.printStackTrace();
+    /**
+     * Told whenever a message is put. Called on the producer's thread so it 
+     * should be quick.
+     */
+    public static interface Listener {
+        public void messageAvailable(MessageQueue queue);
+    }
+    
+    /**
+     * Takes the messages of a {@link #drain(Handler, int)}.
+     */
+    public static interface Handler {
+        public void handle(Message message);
+    }
+    
+    public static enum OverflowPolicy {
+        /** Wait for room, up to the timeout, then drop the new message */
+        BLOCK,
+        /** Make room by dropping the oldest queued message */
+        DROP_OLDEST,
+        /** Drop the new message */
+        DROP_NEWEST,
+        /** 
+         * An activation for a destination that already has one queued is 
+         * dropped (the queued one stands), otherwise like BLOCK 
+         */
+        COALESCE,
+    }
+    
+    private final OverflowPolicy overflowPolicy;
+    private final long timeoutNanos;
+    
+    // Destinations with an activation queued, COALESCE only
+    private final Set<Object> pendingActivations;
+    
+    private final AtomicLong blockedCount = new AtomicLong(0);
+    private final AtomicLong droppedCount = new AtomicLong(0);
+    private final AtomicLong coalescedCount = new AtomicLong(0);
+    
+    private volatile Listener listener = null;
+    
+    // Counts messages in before they're visible to the consumer, see 
+    // setCounter()
+    private volatile AtomicLong counter = null;
+    
+    /**
+     * A timeout of Long.MAX_VALUE waits forever.
+     */
+    protected MessageQueue(OverflowPolicy overflowPolicy, long timeout, TimeUnit unit) {
+        Preconditions.checkArgument(overflowPolicy != null);
+        Preconditions.checkArgument(timeout >= 0);
+        Preconditions.checkArgument(unit != null);
+        
+        this.overflowPolicy = overflowPolicy;
+        this.timeoutNanos = timeout == Long.MAX_VALUE ? Long.MAX_VALUE : unit.toNanos(timeout);
+        this.pendingActivations = overflowPolicy == OverflowPolicy.COALESCE ? 
+                Sets.<Object>newConcurrentHashSet() : null;
+    }
+    
+    protected MessageQueue() {
+        this(OverflowPolicy.BLOCK, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Adds the message if there's room, doesn't block.
+     */
+    protected abstract boolean offer(Message msg);
+    
+    /**
+     * Adds the message, waiting up to the timeout for room. Long.MAX_VALUE 
+     * waits forever.
+     */
+    protected abstract boolean offer(Message msg, long timeoutNanos) throws InterruptedException;
+    
+    /**
+     * Removes the oldest message, from a producer thread - only needed for 
+     * DROP_OLDEST.
+     */
+    protected abstract Message removeOldest();
+    
+    /**
+     * The next message or null, doesn't block.
+     */
+    protected abstract Message dequeue();
+    
+    /**
+     * The next message, waiting for one.
+     */
+    protected abstract Message take() throws InterruptedException;
+    
+    /**
+     * Every message that leaves the queue has to pass through here.
+     */
+    protected final Message dequeued(Message msg) {
+        if (msg != null && this.pendingActivations != null && msg.getType() == Message.Type.ACTIVATION) {
+            this.pendingActivations.remove(msg.getDestination());
+        }
+        return msg;
+    }
+    
+    private boolean enqueue(Message msg) {
+        switch (this.overflowPolicy) {
+            case DROP_NEWEST:
+                return this.offer(msg);
+            
+            case DROP_OLDEST:
+                while (!this.offer(msg)) {
+                    if (this.dequeued(this.removeOldest()) != null) {
+                        this.droppedCount.incrementAndGet();
+                        this.uncount();
+                    }
+                }
+                return true;
+            
+            default:
+                if (this.offer(msg)) {
+                    return true;
+                }
+                
+                this.blockedCount.incrementAndGet();
+                
+                try {
+                    return this.offer(msg, this.timeoutNanos);
+                } catch (InterruptedException ie) {
+                    // Keep the interrupt for the caller, the message is dropped
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+        }
+    }
+    
+    /**
+     * Returns false if the message was dropped or coalesced.
+     */
+    public final boolean put(Message msg) {
+        Preconditions.checkArgument(msg != null);
+        
+        this.count();
+        
+        boolean coalescing = this.pendingActivations != null && msg.getType() == Message.Type.ACTIVATION;
+        
+        if (coalescing && !this.pendingActivations.add(msg.getDestination())) {
+            this.coalescedCount.incrementAndGet();
+            this.uncount();
+            return false;
+        }
+        
+        if (!this.enqueue(msg)) {
+            if (coalescing) {
+                this.pendingActivations.remove(msg.getDestination());
+            }
+            this.droppedCount.incrementAndGet();
+            this.uncount();
+            return false;
+        }
+        
+        this.notifyListener();
+        
+        return true;
+    }
+    
+    /**
+     * Like {@link #put(Message)} but never waits: if the queue is full and
+     * the policy would wait for room (BLOCK, COALESCE) the message is left 
+     * out and false is returned, for the caller to try again later.  It
+     * isn't counted as dropped.  Otherwise true, whatever became of it.
+     */
+    public final boolean tryPut(Message msg) {
+        Preconditions.checkArgument(msg != null);
+        
+        if (this.overflowPolicy == OverflowPolicy.DROP_NEWEST || this.overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+            this.put(msg);
+            return true;
+        }
+        
+        this.count();
+        
+        boolean coalescing = this.pendingActivations != null && msg.getType() == Message.Type.ACTIVATION;
+        
+        if (coalescing && !this.pendingActivations.add(msg.getDestination())) {
+            this.coalescedCount.incrementAndGet();
+            this.uncount();
+            return true;
+        }
+        
+        if (!this.offer(msg)) {
+            if (coalescing) {
+                this.pendingActivations.remove(msg.getDestination());
+            }
+            this.uncount();
+            return false;
+        }
+        
+        this.notifyListener();
+        
+        return true;
+    }
+    
+    private void count() {
+        AtomicLong c = this.counter;
+        if (c != null) {
+            c.incrementAndGet();
+        }
+    }
+    
+    private void uncount() {
+        AtomicLong c = this.counter;
+        if (c != null) {
+            c.decrementAndGet();
+        }
+    }
+    
+    private void notifyListener() {
+        Listener l = this.listener;
+        if (l != null) {
+            l.messageAvailable(this);
         }
     }
     
-    public Message get() {
+    /**
+     * Returns the next message, waiting for one if needed. Returns null if 
+     * interrupted while waiting, with the interrupt status kept.
+     */
+    public final Message get() {
         try {
-            return this.queue.take();
-        } catch (InterruptedException e) {
-            // just dump for now
-//            e.printStackTrace();
+            return this.dequeued(this.take());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
         }
+    }
+    
+    /**
+     * Returns the next message or null if there isn't one, doesn't block.
+     */
+    public final Message poll() {
+        return this.dequeued(this.dequeue());
+    }
+    
+    /**
+     * Hands up to max of the waiting messages to the handler, doesn't block.
+     * Returns how many were handled.  Consumer only.
+     */
+    public int drain(Handler handler, int max) {
+        int drained = 0;
         
-        return null;
+        while (drained < max) {
+            Message msg = this.poll();
+            
+            if (msg == null) {
+                break;
+            }
+            
+            handler.handle(msg);
+            drained++;
+        }
+        
+        return drained;
+    }
+    
+    /**
+     * Puts that found the queue full and had to wait (BLOCK and COALESCE).
+     */
+    public long getBlockedCount() {
+        return this.blockedCount.get();
+    }
+    
+    public abstract int getCapacity();
+    
+    /**
+     * Activations dropped as duplicates (COALESCE).
+     */
+    public long getCoalescedCount() {
+        return this.coalescedCount.get();
     }
     
-    public boolean hasMessage() {
-        return !this.queue.isEmpty();
+    /**
+     * Messages lost to a full queue - timed out, interrupted, or dropped to 
+     * make room.
+     */
+    public long getDroppedCount() {
+        return this.droppedCount.get();
     }
+    
+    public OverflowPolicy getOverflowPolicy() {
+        return this.overflowPolicy;
+    }
+    
+    /**
+     * Every message put from now on is counted up in the counter before it 
+     * goes in, and back down if it doesn't make it (dropped, coalesced, or 
+     * pushed out by a newer one).  Counting down once it's been handled is
+     * up to the consumer, so the counter never misses a message in flight.
+     * Can be shared by many queues, null for none.
+     */
+    public final void setCounter(AtomicLong counter) {
+        this.counter = counter;
+    }
+    
+    public final void setListener(Listener listener) {
+        this.listener = listener;
+    }
+    
+    public abstract boolean hasMessage();
 }
@@ -0,0 +1,73 @@
+
+package com.zygon.mmesh.message;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Static utility methods for {@link MessageQueue}s, the suppliers are what 
+ * a CellGroup takes to build its cells' mailboxes.
+ *
+ * @author zygon
+ */
+public final class MessageQueues {
+    
+    public static final int DEFAULT_CAPACITY = 1024;
+    
+    private MessageQueues() {}
+    
+    /**
+     * A timeout of Long.MAX_VALUE waits forever, it only applies to BLOCK 
+     * and COALESCE.
+     */
+    public static Supplier<MessageQueue> blocking(final int capacity, final MessageQueue.OverflowPolicy overflowPolicy, 
+            final long timeout, final TimeUnit unit) {
+        Preconditions.checkArgument(capacity > 0);
+        Preconditions.checkArgument(overflowPolicy != null);
+        Preconditions.checkArgument(timeout >= 0);
+        Preconditions.checkArgument(unit != null);
+        
+        return new Supplier<MessageQueue>() {
+            @Override
+            public MessageQueue get() {
+                return new BlockingMessageQueue(capacity, overflowPolicy, timeout, unit);
+            }
+        };
+    }
+    
+    public static Supplier<MessageQueue> blocking(int capacity) {
+        return blocking(capacity, MessageQueue.OverflowPolicy.BLOCK, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+    
+    public static Supplier<MessageQueue> blocking() {
+        return blocking(DEFAULT_CAPACITY);
+    }
+    
+    /**
+     * DROP_OLDEST isn't supported, see {@link MpscMessageQueue}.
+     */
+    public static Supplier<MessageQueue> mpsc(final int capacity, final MpscMessageQueue.WaitStrategy waitStrategy, 
+            final MessageQueue.OverflowPolicy overflowPolicy, final long timeout, final TimeUnit unit) {
+        Preconditions.checkArgument(capacity > 0);
+        Preconditions.checkArgument(waitStrategy != null);
+        Preconditions.checkArgument(overflowPolicy != null && overflowPolicy != MessageQueue.OverflowPolicy.DROP_OLDEST);
+        Preconditions.checkArgument(timeout >= 0);
+        Preconditions.checkArgument(unit != null);
+        
+        return new Supplier<MessageQueue>() {
+            @Override
+            public MessageQueue get() {
+                return new MpscMessageQueue(capacity, waitStrategy, overflowPolicy, timeout, unit);
+            }
+        };
+    }
+    
+    public static Supplier<MessageQueue> mpsc(int capacity, MpscMessageQueue.WaitStrategy waitStrategy) {
+        return mpsc(capacity, waitStrategy, MessageQueue.OverflowPolicy.BLOCK, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+    
+    public static Supplier<MessageQueue> mpsc() {
+        return mpsc(DEFAULT_CAPACITY, MpscMessageQueue.WaitStrategy.PARK);
+    }
+}
@@ -0,0 +1,196 @@
+
+package com.zygon.mmesh.message;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.zygon.mmesh.Identifier;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+/**
+ * Reads a message written by {@link MessageCodec} in place, a field at a
+ * time, e.g. to route on the destination or to skip a recorded message by
+ * its type without building it.  Nothing is copied out of the buffer until
+ * asked for, and one view can be re-wrapped over any number of messages.
+ *
+ * The variable length parts are found by scanning from the header, once
+ * each.  Not thread safe, and the buffer must not change while wrapped.
+ *
+ * @author zygon
+ */
+public final class MessageView {
+    
+    public static interface Visitor {
+        public void visit(Identifier id);
+    }
+    
+    private static final Message.Type[] TYPES = Message.Type.values();
+    
+    // The wrapped buffer, and a duplicate of it to read with, kept until
+    // another buffer is wrapped
+    private ByteBuffer source = null;
+    private ByteBuffer buffer = null;
+    private int offset = 0;
+    private Message.Type type = null;
+    
+    // Found on demand, -1 until then
+    private int sourceOffset = -1;
+    private int activesOffset = -1;
+    private int end = -1;
+    
+    private boolean hasActives() {
+        return this.type == Message.Type.PREDICTION || this.type == Message.Type.ACTIVATION_FRAME;
+    }
+    
+    private int getActivesOffset() {
+        Preconditions.checkState(this.hasActives(), "No actives in %s", this.type);
+        
+        if (this.activesOffset < 0) {
+            if (this.type == Message.Type.PREDICTION) {
+                this.buffer.position(this.getSourceOffset());
+                IdentifierCodec.skipIdentifier(this.buffer);
+            } else {
+                this.buffer.position(this.offset + MessageCodec.HEADER_SIZE);
+                IdentifierCodec.skipIdentifier(this.buffer);
+            }
+            
+            this.activesOffset = this.buffer.position();
+        }
+        
+        return this.activesOffset;
+    }
+    
+    private int getSourceOffset() {
+        Preconditions.checkState(this.type == Message.Type.PREDICTION, "No source in %s", this.type);
+        
+        if (this.sourceOffset < 0) {
+            this.buffer.position(this.offset + MessageCodec.HEADER_SIZE);
+            IdentifierCodec.skipIdentifier(this.buffer);
+            
+            this.sourceOffset = this.buffer.position();
+        }
+        
+        return this.sourceOffset;
+    }
+    
+    public void forEachActive(Visitor visitor) {
+        Preconditions.checkArgument(visitor != null);
+        
+        this.buffer.position(this.getActivesOffset());
+        IdentifierCodec.getIdentifiers(this.buffer, visitor);
+    }
+    
+    public int getActiveCount() {
+        this.buffer.position(this.getActivesOffset());
+        
+        return IdentifierCodec.getIdentifierCount(this.buffer);
+    }
+    
+    /**
+     * A copy of the actives, of a PREDICTION or an ACTIVATION_FRAME.
+     */
+    public Set<Identifier> getActives() {
+        final Identifier[] ids = new Identifier[this.getActiveCount()];
+        
+        this.forEachActive(new Visitor() {
+            
+            private int next = 0;
+            
+            @Override
+            public void visit(Identifier id) {
+                ids[this.next++] = id;
+            }
+        });
+        
+        return ImmutableSet.copyOf(ids);
+    }
+    
+    public Identifier getDestination() {
+        this.buffer.position(this.offset + MessageCodec.HEADER_SIZE);
+        
+        return IdentifierCodec.getIdentifier(this.buffer);
+    }
+    
+    /**
+     * The number of bytes the message takes up.
+     */
+    public int getLength() {
+        if (this.end < 0) {
+            if (this.hasActives()) {
+                this.buffer.position(this.getActivesOffset());
+                IdentifierCodec.getIdentifiers(this.buffer, null);
+            } else {
+                this.buffer.position(this.offset + MessageCodec.HEADER_SIZE);
+                IdentifierCodec.skipIdentifier(this.buffer);
+            }
+            
+            this.end = this.buffer.position();
+        }
+        
+        return this.end - this.offset;
+    }
+    
+    public Identifier getSource() {
+        this.buffer.position(this.getSourceOffset());
+        
+        return IdentifierCodec.getIdentifier(this.buffer);
+    }
+    
+    public long getTimestamp() {
+        return this.buffer.getLong(this.offset + MessageCodec.TIMESTAMP_OFFSET);
+    }
+    
+    public Message.Type getType() {
+        return this.type;
+    }
+    
+    public double getValue() {
+        return this.buffer.getDouble(this.offset + MessageCodec.VALUE_OFFSET);
+    }
+    
+    /**
+     * Builds the message, as {@link MessageCodec#decode(ByteBuffer)}.
+     */
+    public Message toMessage() {
+        switch (this.type) {
+            case ACTIVATION:
+                return new ActivationMessage(this.getDestination(), this.getValue(), this.getTimestamp());
+            case ACTIVATION_FRAME:
+                return new ActivationFrame(this.getDestination(), this.getActives(), this.getTimestamp());
+            case PREDICTION:
+                return new PredictionMessage(this.getSource(), this.getDestination(), this.getValue(),
+                        this.getTimestamp(), this.getActives());
+            default:
+                throw new AssertionError(this.type);
+        }
+    }
+    
+    /**
+     * Points the view at the message starting at the offset, the buffer's
+     * position and limit are left alone.
+     */
+    public MessageView wrap(ByteBuffer buffer, int offset) {
+        Preconditions.checkArgument(buffer != null);
+        Preconditions.checkPositionIndex(offset, buffer.limit() - MessageCodec.HEADER_SIZE);
+        
+        int version = buffer.get(offset);
+        Preconditions.checkArgument(version == MessageCodec.VERSION, "Unknown format version %s", version);
+        
+        int type = buffer.get(offset + 1);
+        Preconditions.checkArgument(type >= 0 && type < TYPES.length, "Unknown message type %s", type);
+        
+        if (buffer != this.source) {
+            this.source = buffer;
+            this.buffer = buffer.duplicate();
+        }
+        
+        this.buffer.limit(buffer.limit());
+        this.offset = offset;
+        this.type = TYPES[type];
+        this.sourceOffset = -1;
+        this.activesOffset = -1;
+        this.end = -1;
+        
+        return this;
+    }
+}
@@ -0,0 +1,232 @@
+
+package com.zygon.mmesh.message;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free bounded ring buffer for many producers and a single consumer, 
+ * along the lines of JCTools' MpscArrayQueue. Producers claim a slot with a 
+ * CAS on the producer index then publish into it, the consumer owns the 
+ * consumer index outright.
+ * 
+ * Only one thread may consume (get/poll/drain) at a time - all the cell 
+ * runtimes already guarantee that.  For the same reason producers can't 
+ * remove anything, so DROP_OLDEST isn't supported.
+ *
+ * @author zygon
+ */
+public class MpscMessageQueue extends MessageQueue {
+    
+    /**
+     * What a producer does while the queue is full, and what the consumer 
+     * does in {@link #get()} while it's empty.
+     */
+    public static enum WaitStrategy {
+        /** Busy spin, lowest latency, burns a core */
+        SPIN,
+        /** Thread.yield() between tries */
+        YIELD,
+        /** Parks - the consumer is unparked by the next put, full producers back off */
+        PARK,
+    }
+    
+    private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    
+    private final AtomicReferenceArray<Message> buffer;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    
+    private final AtomicLong producerIndex = new AtomicLong(0);
+    // Only written by the consumer
+    private final AtomicLong consumerIndex = new AtomicLong(0);
+    
+    // The parked consumer, PARK only
+    private volatile Thread waiter = null;
+    
+    /**
+     * The capacity is rounded up to a power of 2.
+     */
+    public MpscMessageQueue(int capacity, WaitStrategy waitStrategy, OverflowPolicy overflowPolicy, long timeout, TimeUnit unit) {
+        super(overflowPolicy, timeout, unit);
+        Preconditions.checkArgument(capacity > 0 && capacity <= (1 << 30));
+        Preconditions.checkArgument(waitStrategy != null);
+        Preconditions.checkArgument(overflowPolicy != OverflowPolicy.DROP_OLDEST, 
+                "DROP_OLDEST needs a multi-consumer queue");
+        
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        
+        this.buffer = new AtomicReferenceArray<Message>(size);
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+    
+    public MpscMessageQueue(int capacity, WaitStrategy waitStrategy) {
+        this(capacity, waitStrategy, OverflowPolicy.BLOCK, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+    
+    public MpscMessageQueue() {
+        this(MessageQueues.DEFAULT_CAPACITY, WaitStrategy.PARK);
+    }
+    
+    private void idle(boolean producer) {
+        switch (this.waitStrategy) {
+            case SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+                if (producer) {
+                    LockSupport.parkNanos(this, PRODUCER_PARK_NANOS);
+                } else {
+                    LockSupport.park(this);
+                }
+                break;
+        }
+    }
+    
+    @Override
+    protected boolean offer(Message msg) {
+        long index;
+        
+        do {
+            index = this.producerIndex.get();
+            
+            if (index - this.consumerIndex.get() > this.mask) {
+                return false;
+            }
+        } while (!this.producerIndex.compareAndSet(index, index + 1));
+        
+        this.buffer.lazySet((int) index & this.mask, msg);
+        
+        Thread t = this.waiter;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+        
+        return true;
+    }
+    
+    @Override
+    protected boolean offer(Message msg, long timeoutNanos) throws InterruptedException {
+        long deadline = timeoutNanos == Long.MAX_VALUE ? 0 : System.nanoTime() + timeoutNanos;
+        
+        while (!this.offer(msg)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (deadline != 0 && System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            this.idle(true);
+        }
+        
+        return true;
+    }
+    
+    @Override
+    protected Message removeOldest() {
+        throw new UnsupportedOperationException();
+    }
+    
+    @Override
+    protected Message take() throws InterruptedException {
+        Message msg = this.dequeue();
+        
+        if (msg != null) {
+            return msg;
+        }
+        
+        Thread current = Thread.currentThread();
+        
+        if (this.waitStrategy == WaitStrategy.PARK) {
+            this.waiter = current;
+        }
+        
+        try {
+            // Re-check after publishing the waiter so a put can't be missed
+            while ((msg = this.dequeue()) == null) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                this.idle(false);
+            }
+        } finally {
+            this.waiter = null;
+        }
+        
+        return msg;
+    }
+    
+    @Override
+    protected Message dequeue() {
+        long index = this.consumerIndex.get();
+        int offset = (int) index & this.mask;
+        
+        Message msg = this.buffer.get(offset);
+        
+        if (msg == null) {
+            if (index == this.producerIndex.get()) {
+                return null;
+            }
+            
+            // A producer has claimed the slot but not published yet
+            while ((msg = this.buffer.get(offset)) == null) {
+                Thread.yield();
+            }
+        }
+        
+        this.buffer.lazySet(offset, null);
+        this.consumerIndex.lazySet(index + 1);
+        
+        return msg;
+    }
+    
+    /**
+     * Hands the published messages straight out of the buffer, stopping at 
+     * the first slot that's still being written.
+     */
+    @Override
+    public int drain(Handler handler, int max) {
+        long index = this.consumerIndex.get();
+        int drained = 0;
+        
+        while (drained < max) {
+            int offset = (int) index & this.mask;
+            Message msg = this.buffer.get(offset);
+            
+            if (msg == null) {
+                break;
+            }
+            
+            this.buffer.lazySet(offset, null);
+            this.consumerIndex.lazySet(++index);
+            
+            handler.handle(this.dequeued(msg));
+            drained++;
+        }
+        
+        return drained;
+    }
+    
+    @Override
+    public int getCapacity() {
+        return this.mask + 1;
+    }
+    
+    public WaitStrategy getWaitStrategy() {
+        return this.waitStrategy;
+    }
+    
+    @Override
+    public boolean hasMessage() {
+        return this.producerIndex.get() != this.consumerIndex.get();
+    }
+}
@@ -13,14 +13,16 @@ import java.util.Set;
 public class PredictionMessage extends Message {
     
     private final Identifier source;
-    private final String display;
     private final Set<Identifier> actives;
     
     public PredictionMessage(Identifier source, Identifier destination, double value, long timestamp, Set<Identifier> actives) {
         super(Type.PREDICTION, destination, value, timestamp);
         this.source = source;
         this.actives = Collections.unmodifiableSet(actives);
-        
+    }
+    
+    @Override
+    protected String buildDisplay() {
         StringBuilder activeSB = new StringBuilder();
         
         for (Identifier id : this.actives) {
@@ -28,7 +30,7 @@ public class PredictionMessage extends Message {
             activeSB.append(",");
         }
         
-        this.display = this.getType().name() + "," + "[source:" + this.source + ", dest:" + 
+        return this.getType().name() + "," + "[source:" + this.source + ", dest:" + 
                 this.getDestination() + ", actives: " + activeSB.toString() + "]," + this.getValue() + "," + new Date(this.getTimestamp());
     }
     
@@ -44,11 +46,6 @@ public class PredictionMessage extends Message {
         return this.source;
     }
 
-    @Override
-    public String getDisplay() {
-        return this.display;
-    }
-    
     public Message setSource(Identifier source) {
 	return new PredictionMessage(source, this.getDestination(), this.getValue(), this.getTimestamp(), this.getActives());
     }
@@ -2,10 +2,13 @@
 package com.zygon.mmesh.message;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.zygon.mmesh.Identifier;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A simple message router.  For now it finds the appropriate queue to put
@@ -18,8 +21,9 @@ import java.util.Map;
  */
 public class Router {
     
-    private final Map<Identifier, MessageQueue> destinations = Maps.newHashMap();
+    private Map<Identifier, MessageQueue> destinations = Maps.newHashMap();
     private final Identifier sourceId;
+    private final AtomicLong undeliverableCount = new AtomicLong(0);
 
     public Router(Identifier sourceId) {
         this.sourceId = sourceId;
@@ -30,7 +34,14 @@ public class Router {
         // different routing rules for the types of message
         switch (message.getType()) {
             case PREDICTION:
-                this.destinations.get(message.getDestination()).put(message);
+                MessageQueue queue = this.destinations.get(message.getDestination());
+                
+                // Not one of ours, e.g. outside of a neighborhood
+                if (queue == null) {
+                    this.undeliverableCount.incrementAndGet();
+                } else {
+                    queue.put(message);
+                }
                 break;
                 
             default:
@@ -38,13 +49,39 @@ public class Router {
         }
     }
     
+    /**
+     * Where each known Identifier's messages go, not a copy.
+     */
+    public Map<Identifier, MessageQueue> getDestinations() {
+        return Collections.unmodifiableMap(this.destinations);
+    }
+    
+    /**
+     * Messages dropped because no destination was known for them.
+     */
+    public long getUndeliverableCount() {
+        return this.undeliverableCount.get();
+    }
+    
     public final void setDestinations(Collection<Destination> destinations) {
         Preconditions.checkArgument(destinations != null && !destinations.isEmpty());
         
-        this.destinations.clear();
+        Map<Identifier, MessageQueue> queuesById = Maps.newHashMap();
         
         for (Destination dest : destinations) {
-            this.destinations.put(dest.getIdentifier(), dest.getQueue());
+            queuesById.put(dest.getIdentifier(), dest.getQueue());
         }
+        
+        this.destinations = queuesById;
+    }
+    
+    /**
+     * Uses the given map as is, so a big group's cells can all share one
+     * instead of each holding a copy.
+     */
+    public final void setDestinations(ImmutableMap<Identifier, MessageQueue> destinations) {
+        Preconditions.checkArgument(destinations != null && !destinations.isEmpty());
+        
+        this.destinations = destinations;
     }
 }
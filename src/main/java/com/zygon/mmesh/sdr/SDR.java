@@ -2,8 +2,11 @@
 package com.zygon.mmesh.sdr;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
 import com.zygon.mmesh.Identifier;
 import com.zygon.mmesh.core.CellGroup;
+import com.zygon.mmesh.core.IdentifierSet;
+import com.zygon.mmesh.message.ActivationFrame;
 import com.zygon.mmesh.message.ActivationMessage;
 
 /**
@@ -15,11 +18,21 @@ import com.zygon.mmesh.message.ActivationMessage;
 public class SDR {
     
     private CellGroup cellGroup;
+    private final boolean batched;
 
-    public SDR (CellGroup cellGroup) {
+    /**
+     * Batched sends each step as one {@link ActivationFrame}, otherwise as 
+     * one {@link ActivationMessage} per target.
+     */
+    public SDR (CellGroup cellGroup, boolean batched) {
         Preconditions.checkArgument(cellGroup != null);
         
         this.cellGroup = cellGroup;
+        this.batched = batched;
+    }
+    
+    public SDR (CellGroup cellGroup) {
+        this(cellGroup, false);
     }
     
     // The usage of this is not quite clear, sending sources could be 
@@ -35,8 +48,19 @@ public class SDR {
         
         this.cellGroup.reset();
         
+        // One timestamp for the whole step, a step number with a logical clock
+        long timestamp = this.cellGroup.nextTimestamp();
+        
+        if (this.batched) {
+            IdentifierSet actives = new IdentifierSet(Sets.newHashSet(targetIds));
+            
+            this.cellGroup.send(new ActivationFrame(this.cellGroup.getIdentifier(), actives, timestamp));
+            
+            return;
+        }
+        
         for (int i = 0; i < sourceIds.length; i++) {
-            ActivationMessage msg = new ActivationMessage(targetIds[i], (i+1) * 10, System.currentTimeMillis());
+            ActivationMessage msg = new ActivationMessage(targetIds[i], (i+1) * 10, timestamp);
             
             this.cellGroup.send(msg);
         }
@@ -48,6 +72,23 @@ public class SDR {
 //        }
     }
     
+    /**
+     * Feeds a recorded input stream through as fast as the cells take it, 
+     * one step at a time - each step waits for the group to go idle, so use 
+     * a runtime that counts in-flight work (e.g. EventDrivenCellRuntime). 
+     * Meant for a logical clock group, where what's active at each step 
+     * comes from the input alone and not from how long the steps took.
+     */
+    public void replay(Iterable<Identifier[]> steps) {
+        for (Identifier[] targetIds : steps) {
+            this.activate(targetIds, targetIds);
+            
+            while (!this.cellGroup.isIdle()) {
+                Thread.yield();
+            }
+        }
+    }
+    
     public Identifier[] getActive() {
         return this.cellGroup.getActiveCells();
     }
@@ -0,0 +1,439 @@
+
+package com.zygon.mmesh.transport;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.zygon.mmesh.Identifier;
+import com.zygon.mmesh.message.Destination;
+import com.zygon.mmesh.message.Message;
+import com.zygon.mmesh.message.MessageCodec;
+import com.zygon.mmesh.message.MessageQueue;
+import com.zygon.mmesh.message.MessageQueues;
+import com.zygon.mmesh.message.MessageView;
+import com.zygon.mmesh.message.MpscMessageQueue;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Transport} over TCP socket channels, meant for several processes
+ * on one box talking over loopback.
+ *
+ * Every connection is one way.  The sending side has one queue for all of
+ * the connection's remote cells and a writer thread which encodes whatever
+ * has queued up, up to the batch size, into one buffer and writes it with
+ * a single call.  The receiving side reads every inbound connection on one
+ * selector thread and hands the decoded messages to the {@link Receiver},
+ * in the order they were sent.  A receiver that blocks pushes back on the
+ * senders through the sockets.
+ *
+ * Messages are framed as an int length followed by the
+ * {@link MessageCodec} bytes.  Messages still queued on stop are lost.
+ *
+ * A connection whose writer is gone, e.g. because the other side died,
+ * takes messages and throws them away from then on, counting them as
+ * undeliverable, so the local cells never wait on a peer that isn't there.
+ *
+ * @author zygon
+ */
+public class SocketTransport implements Transport {
+    
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private static final class RemoteDestination implements Destination {
+        
+        private final Identifier id;
+        private final MessageQueue queue;
+        
+        public RemoteDestination(Identifier id, MessageQueue queue) {
+            this.id = id;
+            this.queue = queue;
+        }
+        
+        @Override
+        public Identifier getIdentifier() {
+            return this.id;
+        }
+        
+        @Override
+        public MessageQueue getQueue() {
+            return this.queue;
+        }
+    }
+    
+    // A connection's outbound queue, turns everything away once closed
+    private final class ConnectionQueue extends MpscMessageQueue {
+        
+        private volatile boolean closed = false;
+        
+        public ConnectionQueue() {
+            super(MessageQueues.DEFAULT_CAPACITY, MpscMessageQueue.WaitStrategy.PARK);
+        }
+        
+        @Override
+        protected boolean offer(Message msg) {
+            if (this.closed) {
+                // taken and dropped, so a put (even one already waiting 
+                // for room) never waits on a dead connection
+                undeliverableCount.incrementAndGet();
+                return true;
+            }
+            
+            return super.offer(msg);
+        }
+        
+        // Consumer only
+        private void close() {
+            this.closed = true;
+            
+            while (this.poll() != null) {
+                undeliverableCount.incrementAndGet();
+            }
+        }
+    }
+    
+    // The sending side of one connection
+    private final class Connection extends Thread implements MessageQueue.Handler {
+        
+        private final SocketChannel channel;
+        private final ConnectionQueue queue = new ConnectionQueue();
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        
+        // Messages taken from the queue since the last write went out
+        private int batch = 0;
+        
+        public Connection(SocketChannel channel, SocketAddress address) {
+            super("Transport-Writer-" + address);
+            super.setDaemon(true);
+            
+            this.channel = channel;
+        }
+        
+        private void flush() throws IOException {
+            this.buffer.flip();
+            
+            while (this.buffer.hasRemaining()) {
+                this.channel.write(this.buffer);
+            }
+            
+            this.buffer.clear();
+            writeCount.incrementAndGet();
+        }
+        
+        @Override
+        public void handle(Message message) {
+            // counted first, it's out of the queue whatever happens next
+            this.batch++;
+            
+            int maxSize = MessageCodec.getMaxEncodedSize(message) + 4;
+            
+            try {
+                if (this.buffer.remaining() < maxSize) {
+                    this.flush();
+                    
+                    if (this.buffer.capacity() < maxSize) {
+                        this.buffer = ByteBuffer.allocateDirect(maxSize);
+                    }
+                }
+            } catch (IOException io) {
+                throw new UncheckedIOException(io);
+            }
+            
+            // the length goes in front once it's known
+            int start = this.buffer.position();
+            this.buffer.position(start + 4);
+            
+            MessageCodec.encode(message, this.buffer);
+            this.buffer.putInt(start, this.buffer.position() - start - 4);
+        }
+        
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Message msg = this.queue.get();
+                    
+                    if (msg == null) {
+                        break; // interrupted, stopping
+                    }
+                    
+                    // whatever else is already waiting goes in the same write
+                    this.handle(msg);
+                    this.queue.drain(this, batchSize - 1);
+                    this.flush();
+                    
+                    sentCount.addAndGet(this.batch);
+                    this.batch = 0;
+                }
+            } catch (IOException | UncheckedIOException io) {
+                if (running) {
+                    io.printStackTrace();
+                }
+                
+                // the batch being written may or may not have made it
+                undeliverableCount.addAndGet(this.batch);
+            } finally {
+                this.queue.close();
+                closeQuietly(this.channel);
+            }
+        }
+    }
+    
+    private final class Reader extends Thread {
+        
+        private final MessageView view = new MessageView();
+        
+        public Reader() {
+            super("Transport-Reader");
+            super.setDaemon(true);
+        }
+        
+        private void accept() throws IOException {
+            SocketChannel channel = server.accept();
+            
+            if (channel != null) {
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(BUFFER_SIZE));
+            }
+        }
+        
+        private void read(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            ByteBuffer buffer = (ByteBuffer) key.attachment();
+            
+            if (channel.read(buffer) < 0) {
+                key.cancel();
+                channel.close();
+                return;
+            }
+            
+            buffer.flip();
+            
+            while (buffer.remaining() >= 4) {
+                int start = buffer.position();
+                int length = buffer.getInt(start);
+                Preconditions.checkArgument(length > 0, "Bad frame length %s", length);
+                
+                if (buffer.remaining() < length + 4) {
+                    if (buffer.capacity() < length + 4) {
+                        ByteBuffer bigger = ByteBuffer.allocate(length + 4);
+                        bigger.put(buffer);
+                        key.attach(bigger);
+                        return;
+                    }
+                    break;
+                }
+                
+                int limit = buffer.limit();
+                buffer.limit(start + 4 + length);
+                
+                Message msg = this.view.wrap(buffer, start + 4).toMessage();
+                Preconditions.checkArgument(this.view.getLength() == length, "Bad frame length %s", length);
+                
+                buffer.limit(limit);
+                buffer.position(start + 4 + length);
+                
+                receivedCount.incrementAndGet();
+                receiver.receive(msg);
+            }
+            
+            buffer.compact();
+        }
+        
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        
+                        if (key.isAcceptable()) {
+                            this.accept();
+                        } else if (key.isReadable()) {
+                            try {
+                                this.read(key);
+                            } catch (IOException | RuntimeException e) {
+                                // just this connection, e.g. the other side died
+                                // or sent something we can't read
+                                e.printStackTrace();
+                                key.cancel();
+                                closeQuietly(key.channel());
+                            }
+                        }
+                    }
+                }
+            } catch (ClosedSelectorException ignore) {
+                // stopped
+            } catch (IOException io) {
+                io.printStackTrace();
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    closeQuietly(key.channel());
+                }
+                closeQuietly(selector);
+            }
+        }
+    }
+    
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignore) {
+        }
+    }
+    
+    private final Receiver receiver;
+    private final InetSocketAddress bindAddress;
+    private final int batchSize;
+    private final List<Connection> connections = Lists.newCopyOnWriteArrayList();
+    
+    private final AtomicLong sentCount = new AtomicLong(0);
+    private final AtomicLong receivedCount = new AtomicLong(0);
+    private final AtomicLong writeCount = new AtomicLong(0);
+    private final AtomicLong undeliverableCount = new AtomicLong(0);
+    
+    private volatile boolean running = false;
+    private ServerSocketChannel server = null;
+    private Selector selector = null;
+    private Reader reader = null;
+    
+    /**
+     * Use port 0 in the bind address for any free port, see
+     * {@link #getLocalAddress()}.
+     */
+    public SocketTransport(Receiver receiver, InetSocketAddress bindAddress, int batchSize) {
+        Preconditions.checkArgument(receiver != null);
+        Preconditions.checkArgument(bindAddress != null);
+        Preconditions.checkArgument(batchSize > 0);
+        
+        this.receiver = receiver;
+        this.bindAddress = bindAddress;
+        this.batchSize = batchSize;
+    }
+    
+    public SocketTransport(Receiver receiver, InetSocketAddress bindAddress) {
+        this(receiver, bindAddress, DEFAULT_BATCH_SIZE);
+    }
+    
+    @Override
+    public Collection<Destination> connect(SocketAddress address, Collection<Identifier> remoteIds) throws IOException {
+        Preconditions.checkState(this.running);
+        Preconditions.checkArgument(address != null);
+        Preconditions.checkArgument(remoteIds != null && !remoteIds.isEmpty());
+        
+        SocketChannel channel = SocketChannel.open(address);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        
+        Connection connection = new Connection(channel, address);
+        ImmutableList.Builder<Destination> destinations = ImmutableList.builder();
+        
+        for (Identifier id : remoteIds) {
+            destinations.add(new RemoteDestination(id, connection.queue));
+        }
+        
+        this.connections.add(connection);
+        connection.start();
+        
+        return destinations.build();
+    }
+    
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+    
+    @Override
+    public SocketAddress getLocalAddress() throws IOException {
+        Preconditions.checkState(this.running);
+        
+        return this.server.getLocalAddress();
+    }
+    
+    /**
+     * Messages read off the inbound connections.
+     */
+    public long getReceivedCount() {
+        return this.receivedCount.get();
+    }
+    
+    /**
+     * Messages written to the outbound connections.
+     */
+    public long getSentCount() {
+        return this.sentCount.get();
+    }
+    
+    /**
+     * Messages for connections that had closed, or were being written when
+     * they did, and were dropped.
+     */
+    public long getUndeliverableCount() {
+        return this.undeliverableCount.get();
+    }
+    
+    /**
+     * The number of socket writes, messages are batched so this is usually
+     * far below {@link #getSentCount()}.
+     */
+    public long getWriteCount() {
+        return this.writeCount.get();
+    }
+    
+    @Override
+    public synchronized void start() throws IOException {
+        Preconditions.checkState(!this.running);
+        
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        this.server.bind(this.bindAddress);
+        this.server.configureBlocking(false);
+        this.server.register(this.selector, SelectionKey.OP_ACCEPT);
+        
+        this.running = true;
+        
+        this.reader = new Reader();
+        this.reader.start();
+    }
+    
+    @Override
+    public synchronized void stop() {
+        if (!this.running) {
+            return;
+        }
+        
+        this.running = false;
+        
+        for (Connection connection : this.connections) {
+            connection.interrupt();
+        }
+        this.connections.clear();
+        
+        // the reader closes the inbound channels on its way out
+        closeQuietly(this.server);
+        this.selector.wakeup();
+    }
+}
@@ -0,0 +1,42 @@
+
+package com.zygon.mmesh.transport;
+
+import com.zygon.mmesh.Identifier;
+import com.zygon.mmesh.message.Destination;
+import com.zygon.mmesh.message.Message;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.Collection;
+
+/**
+ * Carries messages to cells in other processes.  Remote cells show up as
+ * ordinary {@link Destination}s, so a {@link com.zygon.mmesh.message.Router}
+ * sends to them the same way it sends to a local cell.
+ *
+ * @author zygon
+ */
+public interface Transport {
+    
+    /**
+     * Takes the messages arriving from other processes, on the transport's
+     * own thread.
+     */
+    public static interface Receiver {
+        public void receive(Message message);
+    }
+    
+    /**
+     * Connects to the transport at the address, which hosts the given cells.
+     * Messages put to the returned destinations' queues are sent there.
+     */
+    public Collection<Destination> connect(SocketAddress address, Collection<Identifier> remoteIds) throws IOException;
+    
+    /**
+     * Where other processes connect to, once started.
+     */
+    public SocketAddress getLocalAddress() throws IOException;
+    
+    public void start() throws IOException;
+    
+    public void stop();
+}